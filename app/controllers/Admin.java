@@ -18,6 +18,7 @@ package controllers;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.math.BigInteger;
@@ -26,15 +27,21 @@ import javax.persistence.Query;
 
 import com.vividsolutions.jts.geom.Geometry;
 
-import deployment.DeploymentPlan;
+import deployment.DeploymentPlanGenerator;
+import deployment.RebuildQueue;
+import jobs.RecalculateFeedStats;
 
 import play.Logger;
 import play.Play;
 import play.db.jpa.JPA;
 import play.modules.spring.Spring;
+import updaters.FeedStatsCache;
 import updaters.FeedStorer;
+import updaters.S3FeedStorer;
+import updaters.UpdaterFactory;
 
 import models.FeedParseStatus;
+import models.FeedStatsRecalculation;
 import models.GtfsFeed;
 import models.MetroArea;
 import models.MetroAreaSource;
@@ -42,6 +49,7 @@ import models.NtdAgency;
 import models.ReviewType;
 import models.UnmatchedMetroArea;
 import models.UnmatchedPrivateGtfsProvider;
+import utils.SpatialQueries;
 
 /**
  * This defines the admin interface, which is a place to deal with things that are unmapped, &c.
@@ -220,10 +228,8 @@ public class Admin extends Mapper {
         Map<Long, List<MetroAreaWithGeom>> metros = new HashMap<Long, List<MetroAreaWithGeom>>();
         
         MetroAreaWithGeom metro;
-        String query = "SELECT m.name, ST_AsGeoJSON(the_geom) FROM MetroArea m WHERE " + 
-                "ST_DWithin(m.the_geom, transform(ST_GeomFromText(?, ?), ST_SRID(m.the_geom)), 0.04)";
         Geometry agencyGeom;
-        Query ids;
+        Query ids = SpatialQueries.createNearMetrosQuery("m.name, ST_AsGeoJSON(m.the_geom)", null);
         List<Object[]> metrosTemp;
         for (NtdAgency agency : agenciesMultiAreas) {
             if (!metros.containsKey(agency.id))
@@ -231,9 +237,7 @@ public class Admin extends Mapper {
             
             // find metro area(s)
             agencyGeom = agency.getGeom();
-            ids = JPA.em().createNativeQuery(query);
-            ids.setParameter(1, agencyGeom.toText());
-            ids.setParameter(2, agencyGeom.getSRID());
+            SpatialQueries.setGeometry(ids, agencyGeom);
             metrosTemp = ids.getResultList();
             
             for (Object[] result : metrosTemp) {
@@ -418,6 +422,55 @@ public class Admin extends Mapper {
         render(notInDb, storerType);
     }
     
+    /**
+     * Show the feed stats cache hits and misses since startup, and an estimate of the parse time saved.
+     */
+    public static void feedStatsCacheStatus () {
+        renderJSON(FeedStatsCache.getStatus());
+    }
+    
+    /**
+     * Show the progress and throughput of the most recent feed stats recalculation.
+     */
+    public static void recalculateFeedStatsStatus () {
+        Map<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put("running", RecalculateFeedStats.isRunning());
+        
+        FeedStatsRecalculation recalc = FeedStatsRecalculation.findLatest();
+        if (recalc != null) {
+            status.put("started", recalc.started);
+            status.put("updated", recalc.updated);
+            status.put("finished", recalc.finished);
+            status.put("feedsTotal", recalc.feedsTotal);
+            status.put("feedsProcessed", recalc.feedsProcessed);
+            status.put("feedsFailed", recalc.feedsFailed);
+            status.put("lastFeedId", recalc.lastFeedId);
+            status.put("feedsPerMinute", recalc.getFeedsPerMinute());
+            status.put("bytesPerSecond", recalc.getBytesPerSecond());
+        }
+        
+        renderJSON(status);
+    }
+    
+    /**
+     * Show how long each updater took in the last update, and whether it succeeded, slowest first.
+     */
+    public static void updaterStatus () {
+        renderJSON(Spring.getBeanOfType(UpdaterFactory.class).getLastRun());
+    }
+    
+    /**
+     * Show the hit rate and bytes saved by the local cache of stored feeds, if there is one.
+     */
+    public static void storedFeedCacheStatus () {
+        FeedStorer feedStorer = Spring.getBeanOfType(FeedStorer.class);
+        
+        if (feedStorer instanceof S3FeedStorer && ((S3FeedStorer) feedStorer).getCache() != null)
+            renderJSON(((S3FeedStorer) feedStorer).getCache().getStatus());
+        else
+            renderJSON("{\"status\":\"no cache\"}");
+    }
+    
     /**
      * Delete the stored feeds referenced by the specified ID. Note that this is the 
      * ID in storage, not in the DB.
@@ -490,13 +543,48 @@ public class Admin extends Mapper {
      /**
       * Generate deployment plans for every single metro with transit
       */
-     public static void generateDeploymentPlansForAllMetros () {
-         int count = 0;
-         DeploymentPlan dp;
+     public static void generateDeploymentPlansForAllMetros (boolean force)
+             throws InterruptedException {
+         if (!Boolean.parseBoolean(
+                 Play.configuration.getProperty("dashboard.send_requests_automatically"))) {
+             renderText("Deployer requests are not sent automatically, deployed 0 metros.");
+         }
+         
+         List<MetroArea> metros = new ArrayList<MetroArea>();
          for (MetroArea metro : MetroArea.getAllMetrosWithTransit()) {
-             metro.rebuild();
-             count++;
+             if (!metro.disabled)
+                 metros.add(metro);
+         }
+         
+         List<DeploymentPlanGenerator.MetroResult> results = DeploymentPlanGenerator.generate(
+                 metros, Play.configuration.getProperty("dashboard.send_deployer_requests_to"),
+                 force);
+         
+         int count = 0;
+         int skipped = 0;
+         for (DeploymentPlanGenerator.MetroResult result : results) {
+             if (result.status == DeploymentPlanGenerator.MetroResult.Status.SENT)
+                 count++;
+             else if (result.status == DeploymentPlanGenerator.MetroResult.Status.UNCHANGED)
+                 skipped++;
          }
-         renderText("Deployed " + count + " metros.");
+         
+         renderText("Deployed " + count + " metros, " + skipped + " unchanged, " +
+                 (results.size() - count - skipped) + " failed.");
+     }
+     
+     /**
+      * Show the outcome for each metro of the last time deployment plans were generated for
+      * many metros at once.
+      */
+     public static void deploymentStatus () {
+         renderJSON(DeploymentPlanGenerator.getLastResults());
+     }
+     
+     /**
+      * Show how many rebuilds are scheduled and how long after they fall due they are run.
+      */
+     public static void rebuildQueueStatus () {
+         renderJSON(RebuildQueue.getStatus());
      }
 }
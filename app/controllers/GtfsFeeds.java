@@ -16,12 +16,17 @@
 package controllers;
 
 import play.*;
+import play.db.jpa.JPA;
 import play.mvc.*;
 import models.*;
 import proxies.GtfsFeedProxy;
+import utils.DataDumpFormat;
+import utils.DataUtils;
+import utils.DumpWriter;
 import utils.GeometryUtils;
 import com.vividsolutions.jts.geom.MultiPolygon;
 import com.vividsolutions.jts.io.ParseException;
+import java.io.IOException;
 import java.util.Date;
 import play.data.binding.As;
 import java.util.ArrayList;
@@ -29,6 +34,10 @@ import java.util.Calendar;
 import java.util.List;
 import java.util.TimeZone;
 
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+
 public class GtfsFeeds extends Controller {
     /**
      * Create a new GtfsFeed
@@ -105,4 +114,39 @@ public class GtfsFeeds extends Controller {
         // this is fairly quick b/c there are no joins
         renderJSON(feeds);
     }
+    
+    /**
+     * Dump every feed, superseded or not, as JSON or CSV. The feeds are read from a database
+     * cursor and streamed to the client as they are read, so the dump is never all in memory.
+     * @param as JSON or CSV
+     */
+    public static void dump (DataDumpFormat as) throws IOException {
+        if (as == null)
+            as = DataDumpFormat.JSON;
+        
+        // select just the columns in the dump, so no entities pile up in the session
+        Session hibernate = (Session) JPA.em().getDelegate();
+        ScrollableResults feeds = hibernate.createQuery("SELECT f.id, f.agencyName, f.agencyUrl, " +
+                "f.feedBaseUrl, f.official, f.expirationDate, f.status, s.id " +
+                "FROM GtfsFeed f LEFT JOIN f.supersededBy s ORDER BY f.id")
+                .setFetchSize(500)
+                .scroll(ScrollMode.FORWARD_ONLY);
+        
+        DumpWriter out = DumpWriter.create(as,
+                DataUtils.openDump(request, response, as, "GtfsFeeds"));
+        
+        try {
+            while (feeds.next()) {
+                FeedParseStatus status = (FeedParseStatus) feeds.get(6);
+                out.write(new GtfsFeedProxy((Long) feeds.get(0), (String) feeds.get(1),
+                        (String) feeds.get(2), (String) feeds.get(3), (Boolean) feeds.get(4),
+                        (Date) feeds.get(5), status != null ? status.toString() : null,
+                        (Long) feeds.get(7)));
+            }
+        } finally {
+            feeds.close();
+        }
+        
+        out.close();
+    }
 }
\ No newline at end of file
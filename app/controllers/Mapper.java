@@ -21,7 +21,6 @@ import play.mvc.*;
 import play.data.binding.As;
 import play.db.jpa.JPA;
 import javax.persistence.Query;
-import javax.persistence.NoResultException;
 import models.*;
 import proxies.NtdAgencyProxy;
 
@@ -30,6 +29,8 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.HashMap;
 import java.io.File;
 import java.math.BigInteger;
 
@@ -44,6 +45,8 @@ import deployment.DeploymentPlan;
 import updaters.FeedStatsCalculator;
 import updaters.FeedStorer;
 import utils.DbUtils;
+import utils.MetroAreaIndex;
+import utils.UnionFind;
 
 /**
  * This is a place for a lot of functions and DB maintenance things that don't belong anywhere
@@ -68,20 +71,17 @@ public class Mapper extends Controller {
         
         // Inner join - don't match those that don't match
         // this may match in two directions
+        // the domains are normalized when feeds and agencies are saved, so this is an equality
+        // join on indexed columns; pairs that are already linked are left out
         Query q = JPA.em().createNativeQuery(
                                        "SELECT f.id AS feedid, a.id AS agencyid, " + 
                                        "a.name AS agencyname, f.agencyName as feedname, " +
                                        "a.url AS agencyurl, f.agencyUrl AS feedurl " + 
                                        "FROM GtfsFeed f INNER JOIN NtdAgency a " +
-                                       "ON (regexp_replace(LOWER(f.agencyUrl), " + 
-                                       // that regular expression strips the protocol, 
-                                       // strips pathinfo,
-                                       // and strips www. to get a hopefully LCD domain name
-                                       "'(?:\\W*)(?:https?://)?(?:www\\.)?([a-zA-Z0-9\\-_\\.]*)(?:/.*)?(?:\\W*)'," +
-                                       "'\\1') = " + 
-                                       "regexp_replace(LOWER(a.url)," + 
-                                       "'(?:\\W*)(?:https?://)?(?:www\\.)?([a-zA-Z0-9\\-_\\.]*)(?:/.*)?(?:\\W*)'," +
-                                       "'\\1'));"
+                                       "ON (f.agencyDomain = a.domain) " +
+                                       "LEFT JOIN NtdAgency_GtfsFeed nf " +
+                                       "ON (nf.NtdAgency_id = a.id AND nf.feeds_id = f.id) " +
+                                       "WHERE nf.feeds_id IS NULL"
                                        );
         
         List<Object[]> results = q.getResultList();
@@ -313,24 +313,16 @@ public class Mapper extends Controller {
      * Make a best-guess for what agency is referenced by a name based on its location and name.
      */
     public static void setGoogleGtfsFromParse (String name, String areaName, double lat, double lon) {
-        long metroId;
+        Long metroId;
         MetroArea metro;
         List<NtdAgencyProxy> agencies = new ArrayList<NtdAgencyProxy>();
         NtdAgency agency;
         UnmatchedPrivateGtfsProvider provider;
 
         // First, get the MetroArea
-        String qs = "SELECT id FROM MetroArea m " + 
-            "WHERE ST_Within(" +
-              "ST_GeomFromEWKT(CONCAT('SRID=4326;POINT(', ?, ' ', ?, ')'))" +
-            ", m.the_geom) AND (NOT m.disabled OR m.disabled IS NULL)";
-        Query q = JPA.em().createNativeQuery(qs);
-        q.setParameter(1, "" + lon);
-        q.setParameter(2, "" + lat);
+        metroId = MetroAreaIndex.find(lat, lon);
 
-        try {
-            metroId = ((BigInteger) q.getSingleResult()).longValue();
-        } catch (NoResultException e) {
+        if (metroId == null) {
             // store in the DB that it failed
             UnmatchedMetroArea unmatched = UnmatchedMetroArea.find("byNameAndLatAndLon", areaName, lat, lon).first();
             if (unmatched == null) {
@@ -358,7 +350,7 @@ public class Mapper extends Controller {
         Logger.debug("Found metro %s", metro.name);        
         
         // find matching agencies
-        qs = "SELECT a.id FROM ntdagency a " +
+        String qs = "SELECT a.id FROM ntdagency a " +
                 "INNER JOIN metroarea_ntdagency mn ON (a.id = mn.agencies_id) " +
                 "INNER JOIN metroarea m ON (m.id = mn.metroarea_id)" +
                 "WHERE (to_tsvector(CONCAT(a.name, ' ', " + 
@@ -367,7 +359,7 @@ public class Mapper extends Controller {
                 "OR a.url ILIKE CONCAT('%', ?, '%')) " +
                 "AND m.id = ?";
 
-        q = JPA.em().createNativeQuery(qs);
+        Query q = JPA.em().createNativeQuery(qs);
         q.setParameter(1, name);
         q.setParameter(2, name);
         q.setParameter(3, metroId);
@@ -402,10 +394,11 @@ public class Mapper extends Controller {
     /**
      * Manually create a deployment plan and send it to the deployer instance specified by the URL.
      * Note that this will re-set scheduled rebuilds, so be aware of that, if you don't actually
-     * deploy the resulting plan
+     * deploy the resulting plan. The plan is not sent if it is the same as the last plan sent for
+     * the metro, unless force is true.
      */
     public static void createDeploymentPlan (MetroArea metroArea, @As("yyyy-MM-dd") Date date,
-            Integer window, String send) {
+            Integer window, String send, boolean force) {
         
         DeploymentPlan dp;
         if (date == null) {
@@ -419,12 +412,20 @@ public class Mapper extends Controller {
         }
     	
     	if (send != null && !send.equals("")) {
-    	    dp.sendTo(send);   
+    	    dp.sendTo(send, force);
     	}
     	
     	renderJSON(dp.toJson());
     }
     
+    /**
+     * Show the differences between the current deployment plan for a metro and the last plan sent
+     * for it. Unlike createDeploymentPlan, this does not change the scheduled rebuilds.
+     */
+    public static void deploymentPlanDiff (MetroArea metroArea) {
+        renderJSON(DeploymentPlan.preview(metroArea).getDiff().toJson());
+    }
+    
     /**
      * Create OTP GTFS bundle entries for the given metro area ID. Uses an old, very simple 
      * algorithm rather than the more-sophisticated Deployment Planner.
@@ -491,12 +492,7 @@ public class Mapper extends Controller {
         MetroArea toCheck = null;
         MetroArea other;
         MetroArea areaMergeInto;
-        boolean changed;
-        // init only the outer; inner is inited on each iteration
-        List<List<String>> toMerge = new ArrayList<List<String>>();
-        List<String> agencyUzas;
-        List<String> toDelete = null;
-        List<String> toAddTo = null;
+        UnionFind<String> connectedUzas = new UnionFind<String>();
         List<String> resultingAreas = new ArrayList<String>();
         Set<String> nullUzas = new HashSet<String>();
         String currentUza;
@@ -508,22 +504,25 @@ public class Mapper extends Controller {
         // The UZAs are merged in three passes. Here's how it works. In the first pass, each
         // agency is assigned to a UZA that it is a member of. If an agency has multiple UZAs,
         // one is selected. It doesn't matter which (as long as it's not null) because later all
-        // connected UZAs will be merged. The first pass also creates a list of lists of connected
-        // areas, which is just a list of all the UZAs of each agency. After the first iteration,
-        // we have a starting point, but there are still overlaps between the service areas of
-        // different agencies.
+        // connected UZAs will be merged. The first pass also records that all the UZAs of each
+        // agency are connected.
     
-        // The next step is a nested loop. It iterates over that list of lists, and for each list
-        // looks if any members of it are contained in other lists. If they are, it combines those
-        // two lists, deletes the second one, and restarts the loop. This continues until there are
-        // no overlaps between areas
+        // The second pass finds the sets of connected UZAs, using a union-find over the UZA
+        // names. Each set, and the UZAs in it, are in the order the UZAs were first seen.
     
-        // Finally, the resultant list of lists is iterated over, and for each area all of the 
-        // the UZAs are merged into the first one using the MetroArea.mergeWith method of the 
-        // first UZA.
+        // Finally, for each set all of the UZAs are merged into the first one using the
+        // MetroArea.mergeAreas method of the first UZA.
+        
+        // look the areas up by name in memory rather than querying for each UZA of each agency;
+        // if there are several areas with the same name, use the first
+        Map<String, MetroArea> areasByName = new HashMap<String, MetroArea>();
+        for (MetroArea m : MetroArea.<MetroArea>findAll()) {
+            if (m.name != null && !areasByName.containsKey(m.name))
+                areasByName.put(m.name, m);
+        }
     
         // First, we map each one to its first UZA, which is fine because we merge all the
-        // UZAs later anyways. Also, make a list of UZAs which should be merged.
+        // UZAs later anyways. Also, connect the UZAs which should be merged.
         for (NtdAgency agency : agencies) {
             // make sure that UZAs don't leak between iterations
             area = null;
@@ -536,7 +535,7 @@ public class Mapper extends Controller {
     
             // Loop over all the UZAs and report which ones are null for user inspection
             for (String uza : agency.uzaNames) {
-                toCheck = MetroArea.find("byName", uza).first();
+                toCheck = areasByName.get(uza);
                 if (toCheck == null)
                     nullUzas.add(uza);
                 else
@@ -544,70 +543,27 @@ public class Mapper extends Controller {
                     area = toCheck;
             }
     
+            // connect all of this agency's UZAs for the second pass
+            String firstUza = agency.uzaNames.get(0);
+            for (String uza : agency.uzaNames) {
+                connectedUzas.union(firstUza, uza);
+            }
+    
             // if area is still null, warn the user that this won't have an area
-            if (area == null)
+            if (area == null) {
                 unmappedAgencies.add(agency);
+                continue;
+            }
     
             // set the area
             area.agencies.add(agency);
             area.save();
             agency.save();
-    
-            // intern all the strings for fast comparisons later
-            // and put them into the list of lists for the reducer to chew on.
-            agencyUzas = new ArrayList<String>();
-            for (String uza : agency.uzaNames) {
-                agencyUzas.add(uza.intern());
-            }
-            toMerge.add(agencyUzas);
         }
     
-        // now, merge the lists of UZAs (pass 2)
-        do {
-            changed = false;
-    
-            for (List<String> mergeArea : toMerge) {
-                // find areas with common UZAs
-                for (List<String> otherMergeArea : toMerge) {
-    
-                    // don't merge areas with themselves
-                    if (mergeArea == otherMergeArea) 
-                        continue;
-    
-                    // for each of the UZAs in this area, see if there is overlap with the other
-                    // area
-                    for (String uza : mergeArea) {
-                        if (otherMergeArea.contains(uza)) {
-                            // they need to be merged. mark them as such, and end the iteration
-                            // so they can be.
-                            toDelete = otherMergeArea;
-                            toAddTo = mergeArea;
-                            changed = true;
-                            break;    
-                        }
-                    }
-                }
-            }
-    
-            // if one was marked for update
-            if (toDelete != null) {
-                for (String uza : toDelete) {
-                    // Eclipse is telling me that toAddTo can only be null here, but if that were the
-                    // case it would be throwing NPEs, I think. This code is getting called, because
-                    // otherwise nothing would get merged -MWC
-                    if (!toAddTo.contains(uza)) {
-                        toAddTo.add(uza);
-                    }
-                }
-                        
-                // remove the merged object
-                toMerge.remove(toDelete);
-            }
-            toDelete = null;
-            toAddTo = null;
-    
-            Logger.debug("Reduced to %s areas", toMerge.size());
-        } while (changed);
+        // now, find the connected UZAs (pass 2)
+        List<List<String>> toMerge = connectedUzas.getComponents();
+        Logger.debug("Reduced to %s areas", toMerge.size());
     
         // now, actually merge the areas
         for (List<String> connected : toMerge) {
@@ -619,7 +575,7 @@ public class Mapper extends Controller {
             // terminate by itself
             do {
                 currentUza = connected.get(0);
-                areaMergeInto = MetroArea.find("byName", currentUza).first();
+                areaMergeInto = areasByName.get(currentUza);
                 connected.remove(0);
     
                 if (areaMergeInto == null) {
@@ -640,7 +596,7 @@ public class Mapper extends Controller {
             // now, loop through the remaining UZAs and merge if not null.
             for (String otherName : connected) {
                 // if it's null, ignore it but report it
-                other = MetroArea.find("byName", otherName).first();
+                other = areasByName.get(otherName);
                 if (other == null) {
                     nullUzas.add(otherName);
                     continue;
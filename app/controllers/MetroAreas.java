@@ -19,14 +19,15 @@ import play.*;
 import play.mvc.*;
 import play.db.jpa.JPA;
 import models.MetroArea;
+import utils.DataUtils;
 import utils.GeometryUtils;
+import utils.MetroLayerCache;
 import com.vividsolutions.jts.geom.MultiPolygon;
 import com.vividsolutions.jts.geom.Polygon;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.io.ParseException;
 import javax.persistence.Query;
-import java.util.List;
 import java.util.Date;
 
 public class MetroAreas extends Controller {
@@ -85,30 +86,22 @@ public class MetroAreas extends Controller {
     }
 
     /**
-     * Return a list of all metro areas
+     * Return all metro areas as a GeoJSON FeatureCollection.
+     * @param zoom The web map zoom level to simplify the geometries for
+     * @param tolerance The simplification tolerance in degrees, used if zoom is not specified; it
+     *    is rounded to the nearest zoom level. If neither is specified, geometries are not
+     *    simplified.
      */
-    public static void getAll () {
-        // TODO: stringbuilder
-        String output = "{\"type\": \"FeatureCollection\", \"features\": [";
-        List<MetroArea> areas = MetroArea.findAll();
-        boolean first = true;
-
-        String query = "SELECT m.name, ST_AsGeoJSON(m.the_geom, 6, 2) AS geom " +
-            "FROM MetroArea m";
-        Query q = JPA.em().createNativeQuery(query);
-        List<Object[]> results = q.getResultList();
-
-        for (Object[] result : results) {
-            if (!first) {
-                // TODO: super slow
-                output += "," +  String.format(jsonFeature, (String) result[0], (String) result[1]);
-            }
-            else {
-                first = false;
-                output +=  String.format(jsonFeature, (String) result[0], (String) result[1]);
-            }   
-        }
-        output += "]}";
-        renderJSON(output);
+    public static void getAll (Integer zoom, Double tolerance) {
+        if (zoom == null && tolerance != null)
+            zoom = MetroLayerCache.getZoom(tolerance);
+        
+        MetroLayerCache.Layer layer = MetroLayerCache.get(zoom);
+        response.setHeader("ETag", layer.etag);
+        
+        if (DataUtils.etagMatches(request, layer.etag))
+            notModified();
+        
+        renderJSON(layer.json);
     }
 }
\ No newline at end of file
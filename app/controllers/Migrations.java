@@ -15,9 +15,11 @@
 
 package controllers;
 
+import models.GtfsFeed;
 import models.MetroArea;
 import models.NtdAgency;
 import play.mvc.Controller;
+import utils.UrlUtils;
 
 /**
  * Database migrations
@@ -48,4 +50,27 @@ public class Migrations extends Controller {
         
         renderJSON("{\"status\":\"success\"}");
     }
+    
+    /**
+     * Fill in the normalized domains of agencies and feeds saved before they had them. They are
+     * kept up to date when agencies and feeds are saved, so this only needs to be run once.
+     */
+    public static void normalizeDomains () {
+        int agencies = 0;
+        int feeds = 0;
+        
+        for (NtdAgency agency : NtdAgency.<NtdAgency>findAll()) {
+            agency.domain = UrlUtils.normalizeDomain(agency.url);
+            agency.save();
+            agencies++;
+        }
+        
+        for (GtfsFeed feed : GtfsFeed.<GtfsFeed>findAll()) {
+            feed.agencyDomain = UrlUtils.normalizeDomain(feed.agencyUrl);
+            feed.save();
+            feeds++;
+        }
+        
+        renderJSON("{\"status\":\"success\",\"agencies\":" + agencies + ",\"feeds\":" + feeds + "}");
+    }
 }
@@ -20,15 +20,14 @@ import play.mvc.*;
 import play.db.jpa.JPA;
 import models.*;
 import proxies.NtdAgencyProxy;
-import proxies.Proxy;
+import utils.AgencyListCache;
 import utils.DataDumpFormat;
 import utils.DataUtils;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.List;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
-import java.math.BigInteger;
-import javax.persistence.Query;
 import com.google.gson.Gson;
 
 public class NtdAgencies extends Controller {
@@ -50,73 +49,30 @@ public class NtdAgencies extends Controller {
     }
 
     /**
-     * Return a list of agencies
+     * Return a list of agencies. The list is cached until an agency, metro or feed changes, and
+     * requests with the ETag of the cached list get a 304.
      * @param as JSON or CSV
      */
-    public static void agencies (DataDumpFormat as) {
-        List<Proxy> agencies = new ArrayList<Proxy>();
-        List<Object[]> results;
-        NtdAgencyProxy current;
-
+    public static void agencies (DataDumpFormat as) throws IOException {
         // send JSON by default
         if (as == null)
             as = DataDumpFormat.JSON;
         
-        String qs =
-            "SELECT a.name, a.url, m.name AS metroname, a.population, a.ridership, " +
-            "a.passengerMiles, " + 
-            "CASE "+
-            "  WHEN f.publicGtfs THEN true " +
-            "  ELSE false " +
-            "END AS publicGtfs, " +
-            "googleGtfs, m.source AS metrosource, " +
-            "Y(ST_Transform(ST_Centroid(m.the_geom), 4326)) AS lat," +
-            "X(ST_Transform(ST_Centroid(m.the_geom), 4326)) AS lon, " +
-            "a.id " +
-            "FROM (NtdAgency a " +
-            "  LEFT JOIN (SELECT mn.agencies_id AS id, min(m.name) AS name, bool_and(m.disabled) AS disabled, min(m.source) AS source, ST_Union(m.the_geom) AS the_geom FROM MetroArea_NtdAgency mn LEFT JOIN MetroArea m ON (mn.metroarea_id = m.id) GROUP BY mn.agencies_id) m " +
-            "    ON (m.id = a.id))" +
-            "  LEFT JOIN (SELECT j.NtdAgency_id, count(*) > 0 AS publicGtfs " + 
-            "               FROM NtdAgency_GtfsFeed j " +
-            "             GROUP BY j.NtdAgency_id) f ON (a.id = f.NtdAgency_id) " +
-            // if any are enabled, show this agency
-            "WHERE m.disabled = false AND a.disabled = false;";
-
-        Query q = JPA.em().createNativeQuery(qs);
+        AgencyListCache.Rendering agencies = AgencyListCache.get();
+        String etag = as == DataDumpFormat.CSV ? agencies.csvEtag : agencies.jsonEtag;
         
-        results = q.getResultList();
-
-        for (Object[] result : results) {
-         
-            current = new NtdAgencyProxy(
-                (String) result[0], // name
-                (String) result[1], // url
-                (String) result[2], // Metro name
-                ((Integer) result[3]).intValue(), // population
-                ((Integer) result[4]).intValue(), // ridership
-                ((Integer) result[5]).intValue(), // passenger miles
-                ((Boolean) result[6]).booleanValue(), // public GTFS
-                ((Boolean) result[7]).booleanValue(), // google GTFS
-                (Double) result[9], // lat
-                (Double) result[10], // lon
-                ((BigInteger) result[11]).longValue() // id
-                                         );
-
-            agencies.add(current);
-        }
+        // the gzipped response is different bytes, so it needs a different strong ETag
+        if (DataUtils.useGzip(request))
+            etag = etag.substring(0, etag.length() - 1) + "-gzip\"";
+        
+        response.setHeader("ETag", etag);
+        
+        if (DataUtils.etagMatches(request, etag))
+            notModified();
 
-        if (as == DataDumpFormat.CSV) {
-            // http://stackoverflow.com/questions/398237
-            response.setContentTypeIfNotSet("text/csv");
-            response.setHeader("Content-Disposition", 
-                               "attachment;filename=TransitDataDashboard.csv");
-            renderText(DataUtils.encodeCsv(agencies));
-        } 
-        else if (as == DataDumpFormat.JSON) {
-            response.setHeader("Content-Disposition",
-                               "attachment;filename=TransitDataDashboard.json");
-            renderJSON(agencies);
-        }
+        Writer out = DataUtils.openDump(request, response, as, "TransitDataDashboard");
+        out.write(as == DataDumpFormat.CSV ? agencies.csv : agencies.json);
+        out.close();
     }
     
     /**
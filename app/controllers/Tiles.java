@@ -0,0 +1,50 @@
+/*
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package controllers;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import play.mvc.Controller;
+import utils.TileCache;
+
+/**
+ * Mapbox vector tiles of the metro areas and of the coverage of the current feeds.
+ *
+ * @author mattwigway
+ */
+public class Tiles extends Controller {
+    /**
+     * Get a tile.
+     * @param layer metros or feeds
+     * @param z The zoom level
+     * @param x The column, from the west
+     * @param y The row, from the north
+     */
+    public static void get (String layer, int z, int x, int y) throws IOException {
+        if (!TileCache.hasLayer(layer))
+            notFound("No such layer " + layer);
+
+        if (z < 0 || z > TileCache.MAX_ZOOM || x < 0 || y < 0 || x >= 1 << z || y >= 1 << z)
+            notFound("No such tile " + z + "/" + x + "/" + y);
+
+        byte[] tile = TileCache.get(layer, z, x, y);
+
+        response.setHeader("Cache-Control", "max-age=60");
+        renderBinary(new ByteArrayInputStream(tile), layer + ".pbf", tile.length,
+                "application/x-protobuf", true);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package deployment;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import play.Logger;
+import play.libs.WS;
+import play.libs.WS.HttpResponse;
+import play.libs.WS.WSRequest;
+
+/**
+ * Sends deployment plans to Deployer in the background. At most threads requests are in flight at
+ * once and at most queueSize more wait to be sent; send blocks when the queue is full, so plans
+ * are not built much faster than Deployer can take them. Failed requests are retried, waiting
+ * twice as long before each retry.
+ *
+ * @author mattwigway
+ */
+public class DeployerSender {
+    private ExecutorService executor;
+    private Semaphore slots;
+    private int maxAttempts;
+    private long backoffMillis;
+
+    public DeployerSender (int threads, int queueSize, int maxAttempts, long backoffMillis) {
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.slots = new Semaphore(threads + queueSize);
+        this.maxAttempts = maxAttempts;
+        this.backoffMillis = backoffMillis;
+    }
+
+    /**
+     * Queue the given plan JSON to be sent to the given URL.
+     * @param diff The differences from the last plan sent, as JSON, or null.
+     * @param description What is being sent, for log and error messages.
+     * @return the number of attempts it took to send it; get throws an ExecutionException if
+     * every attempt failed.
+     */
+    public Future<Integer> send (final String url, final String json, final String diff,
+            final String description) throws InterruptedException {
+        slots.acquire();
+
+        try {
+            return executor.submit(new Callable<Integer>() {
+                public Integer call () throws Exception {
+                    try {
+                        for (int attempt = 1; ; attempt++) {
+                            try {
+                                post(url, json, diff, description);
+                                return attempt;
+                            } catch (Exception e) {
+                                if (attempt >= maxAttempts)
+                                    throw e;
+
+                                Logger.warn("Error sending %s to Deployer, retrying (attempt %s): %s",
+                                        description, attempt, e.getMessage());
+                                Thread.sleep(backoffMillis << (attempt - 1));
+                            }
+                        }
+                    } finally {
+                        slots.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            slots.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Stop accepting requests; requests already queued are still sent.
+     */
+    public void shutdown () {
+        executor.shutdown();
+    }
+
+    /**
+     * Send the given plan JSON to the given URL in this thread, with the differences from the
+     * last plan sent in the diff parameter if diff is not null.
+     * @throws IllegalStateException if the Deployer server returned a non-success status.
+     */
+    public static void post (String url, String json, String diff, String description)
+            throws IllegalStateException {
+        WSRequest req = WS.url(url);
+        req.setParameter("data", json);
+        if (diff != null)
+            req.setParameter("diff", diff);
+        HttpResponse res = req.post();
+
+        if (!res.success()) {
+            throw new IllegalStateException("Deployer returned a status of " + res.getStatus() +
+                    " for request to [re]build " + description);
+        }
+    }
+}
@@ -17,7 +17,10 @@ package deployment;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
@@ -28,10 +31,8 @@ import java.net.URL;
 
 import com.google.gson.Gson;
 
+import play.Logger;
 import play.Play;
-import play.libs.WS;
-import play.libs.WS.HttpResponse;
-import play.libs.WS.WSRequest;
 import play.modules.spring.Spring;
 
 import models.BikeRentalSystem;
@@ -41,6 +42,8 @@ import models.FeedParseStatus;
 import models.GtfsFeed;
 import models.MetroArea;
 import models.NtdAgency;
+import models.SentDeploymentPlan;
+import utils.HashUtils;
 
 /**
  * A deployment plan contains all the information needed to build a graph for a given metro area at a
@@ -57,6 +60,9 @@ public class DeploymentPlan {
 	private Calendar calendar;
 	private FeedDescriptor[] feeds;
 	private int window;
+	private SupersessionGraph graph;
+	/** Does building this plan replace the metro's scheduled rebuilds? */
+	private boolean scheduleRebuilds;
 	
 	/**
 	 * Create a plan for the given metro at the current time and for the default window.
@@ -66,6 +72,16 @@ public class DeploymentPlan {
 		this(area, Calendar.getInstance(TimeZone.getTimeZone("gmt")).getTime());
 	}
 	
+	/**
+	 * Create a plan for the given metro at the current time and for the default window, without
+	 * touching its scheduled rebuilds, e.g. to look at it without deploying it.
+	 */
+	public static DeploymentPlan preview(MetroArea area) {
+		return new DeploymentPlan(area, Calendar.getInstance(TimeZone.getTimeZone("gmt")).getTime(),
+				Integer.parseInt(Play.configuration.getProperty("dashboard.planwindow", "14")),
+				false);
+	}
+	
 	/**
 	 * Create a plan for the given metro at the given date and for the default window.
 	 * @param area
@@ -83,7 +99,20 @@ public class DeploymentPlan {
 	 * @param window The number of days this plan should attempt to find valid trip plans.
 	 */
 	public DeploymentPlan(MetroArea area, Date date, int window) {
+		this(area, date, window, true);
+	}
+	
+	/**
+	 * Create a new deployment plan.
+	 * @param area The Metro Area to create a plan for.
+	 * @param date The date this plan should go into effect
+	 * @param window The number of days this plan should attempt to find valid trip plans.
+	 * @param scheduleRebuilds Replace the scheduled rebuilds of the metro with the ones this plan
+	 * needs; if false, the plan does not change the database.
+	 */
+	public DeploymentPlan(MetroArea area, Date date, int window, boolean scheduleRebuilds) {
 		this.area = area;
+		this.scheduleRebuilds = scheduleRebuilds;
 		this.window = window;
 		this.calendar = Calendar.getInstance(gmt);
 		this.startDate = date;
@@ -95,7 +124,11 @@ public class DeploymentPlan {
 		
 		// Clear all the scheduled rebuilds of this area; if still applicable, they will be
 		// recreated automatically.
-		DeploymentPlanScheduler.clearRebuilds(this.area);
+		if (scheduleRebuilds)
+			DeploymentPlanScheduler.clearRebuilds(this.area);
+		
+		// load all the feeds that could be in the plan at once
+		this.graph = new SupersessionGraph(area);
 		
 		for (NtdAgency agency : area.agencies) {
 		    if (agency.disabled)
@@ -125,6 +158,14 @@ public class DeploymentPlan {
 		
         this.feeds = new FeedDescriptor[toInclude.size()];
         this.feeds = toInclude.toArray(this.feeds);
+        
+        // sort the feeds so that the same plan always produces the same JSON
+        Arrays.sort(this.feeds, new Comparator<FeedDescriptor>() {
+            public int compare(FeedDescriptor a, FeedDescriptor b) {
+                int c = compareNullable(a.feedId, b.feedId);
+                return c != 0 ? c : compareNullable(a.defaultAgencyId, b.defaultAgencyId);
+            }
+        });
 	}
 	
 	/**
@@ -143,14 +184,63 @@ public class DeploymentPlan {
 	 * @throws IllegalStateException if the Deployer server returned a non-success status.
 	 */
 	public void sendTo(String url) throws IllegalStateException {
-	    WSRequest req = WS.url(url);
-	    req.setParameter("data", this.toJson());
-	    HttpResponse res = req.post();
+	    sendTo(url, false);
+	}
+	
+	/**
+	 * Send this to the given URL, with the differences from the last plan sent for this metro,
+	 * unless it is the same as the last plan sent and force is false. Must be called in a JPA
+	 * transaction.
+	 * 
+	 * @return true if the plan was sent
+	 * @throws IllegalStateException if the Deployer server returned a non-success status.
+	 */
+	public boolean sendTo(String url, boolean force) throws IllegalStateException {
+	    String json = this.toJson();
+	    String fingerprint = HashUtils.sha256(json);
+	    
+	    SentDeploymentPlan sent = SentDeploymentPlan.findByMetroAreaId(this.area.id);
 	    
-	    if (!res.success()) {
-	        throw new IllegalStateException("Deployer returned a status of " + res.getStatus() +
-	                " for request to [re]build metro " + this.area.toString() + "(id " + this.area.id + ")");
+	    if (!force && sent != null && fingerprint.equals(sent.fingerprint)) {
+	        Logger.info("Deployment plan for metro %s (id %s) is unchanged, not sending",
+	                this.area, this.area.id);
+	        return false;
 	    }
+	    
+	    DeploymentPlanDiff diff = DeploymentPlanDiff.against(sent, json, fingerprint);
+	    DeployerSender.post(url, json, diff.toJson(),
+	            "metro " + this.area.toString() + "(id " + this.area.id + ")");
+	    SentDeploymentPlan.record(this.area.id, fingerprint, json);
+	    Logger.info("Sent deployment plan %s for metro %s (id %s)", fingerprint, this.area,
+	            this.area.id);
+	    return true;
+	}
+	
+	/**
+	 * Get the SHA-256 of the JSON for this plan. Feeds and bike rental systems are sorted, so
+	 * plans with the same content have the same fingerprint.
+	 */
+	public String getFingerprint () {
+	    return HashUtils.sha256(this.toJson());
+	}
+	
+	/**
+	 * Get the differences between this plan and the last plan sent for this metro. Must be called
+	 * in a JPA transaction.
+	 */
+	public DeploymentPlanDiff getDiff () {
+	    String json = this.toJson();
+	    return DeploymentPlanDiff.against(SentDeploymentPlan.findByMetroAreaId(this.area.id),
+	            json, HashUtils.sha256(json));
+	}
+	
+	/**
+	 * Is a plan with the given fingerprint the last plan sent for this metro? Must be called in a
+	 * JPA transaction.
+	 */
+	public boolean isUnchanged (String fingerprint) {
+	    SentDeploymentPlan sent = SentDeploymentPlan.findByMetroAreaId(this.area.id);
+	    return sent != null && fingerprint.equals(sent.fingerprint);
 	}
 	
 	private void addFeeds(String agency, GtfsFeed feed, Set<FeedDescriptor> toInclude, int iteration) {
@@ -180,8 +270,7 @@ public class DeploymentPlan {
 		isoDate.setTimeZone(feed.timezone);
 		
 		if (feed.status == FeedParseStatus.FAILED) {
-		    olderFeed = GtfsFeed.find("supersededBy = ? ORDER BY expirationDate DESC", feed)
-		            .first();
+		    olderFeed = graph.findOlderByExpirationDate(feed);
 		    if (olderFeed != null)
 		        addFeeds(agency, olderFeed, toInclude, iteration + 1);
 		        return;
@@ -215,6 +304,7 @@ public class DeploymentPlan {
 	            if (feed.realtimeUrls != null && feed.realtimeUrls.size() > 0) {
 	                fd.realtimeUrls = new String[feed.realtimeUrls.size()];
 	                fd.realtimeUrls = feed.realtimeUrls.toArray(fd.realtimeUrls);
+	                Arrays.sort(fd.realtimeUrls);
 	            }   
 				
 				fd.defaultAgencyId = agency;
@@ -230,12 +320,19 @@ public class DeploymentPlan {
 			    local.setTime(feed.startDate);
 			    // - 1 so it will be sure to rebuild
 			    local.add(Calendar.DAY_OF_YEAR, -this.window - 1);
-			    DeploymentPlanScheduler.scheduleRebuild(feed, local.getTime());
+			    
+			    // if the feed starts within a day of the end of the window, that is before this
+			    // plan; rebuilding right away would just build this plan again and schedule the
+			    // same rebuild again, so wait a while instead
+			    long retry = this.startDate.getTime() + RebuildQueue.getRetryMillis();
+			    if (local.getTimeInMillis() < retry)
+			        local.setTimeInMillis(retry);
+			    
+			    if (this.scheduleRebuilds)
+			        DeploymentPlanScheduler.scheduleRebuild(feed, local.getTime());
 			}
 			
-			olderFeed = GtfsFeed.find(
-			        "supersededBy = ? ORDER BY startDate DESC",
-			        feed).first();
+			olderFeed = graph.findOlderByStartDate(feed);
 			if (olderFeed == null) {
 				// Data doesn't go back far enough
 				return;
@@ -263,6 +360,7 @@ public class DeploymentPlan {
 			if (feed.realtimeUrls != null && feed.realtimeUrls.size() > 0) {
 			    fd.realtimeUrls = new String[feed.realtimeUrls.size()];
 			    fd.realtimeUrls = feed.realtimeUrls.toArray(fd.realtimeUrls);
+			    Arrays.sort(fd.realtimeUrls);
 			}			    
 			
 			fd.defaultAgencyId = agency;
@@ -285,9 +383,7 @@ public class DeploymentPlan {
 			    // if the feed is disabled, try the feed it superseded.
 			    // This is in case an agency releases new, bad GTFS that supersedes older but
 			    // working GTFS
-			    olderFeed = GtfsFeed.find(
-	                    "supersededBy = ? ORDER BY startDate DESC",
-	                    feed).first();
+			    olderFeed = graph.findOlderByStartDate(feed);
 			    
 			    if (olderFeed != null) 
 			        addFeeds(agency, olderFeed, toInclude, iteration + 1);
@@ -307,7 +403,16 @@ public class DeploymentPlan {
 		plan.metroId = this.area.id;
 		plan.metro = this.area.name;
 		plan.bikeRentalSystems = new ArrayList<BikeRentalSystemProxy>();
-		for (BikeRentalSystem system : this.area.getBikeRentalSystems()) {
+		
+		List<BikeRentalSystem> systems = this.area.getBikeRentalSystems();
+		Collections.sort(systems, new Comparator<BikeRentalSystem>() {
+		    public int compare(BikeRentalSystem a, BikeRentalSystem b) {
+		        int c = compareNullable(a.name, b.name);
+		        return c != 0 ? c : compareNullable(a.url, b.url);
+		    }
+		});
+		
+		for (BikeRentalSystem system : systems) {
 		    plan.bikeRentalSystems.add(new BikeRentalSystemProxy(system));
 		}
 		
@@ -387,6 +492,10 @@ public class DeploymentPlan {
 	        return defaultAgencyId;
 	    }
 	    
+	    public String[] getRealtimeUrls() {
+	        return realtimeUrls;
+	    }
+	    
 	    public FeedDescriptor () {
 	        realtimeUrls = null;
 	    }
@@ -410,6 +519,24 @@ public class DeploymentPlan {
 	    return feeds;
 	}
 	
+	/**
+	 * Get the number of queries used to load the feeds for this plan.
+	 */
+	public int getQueryCount() {
+	    return graph.getQueryCount();
+	}
+	
+	/**
+	 * Compare two strings, sorting nulls first.
+	 */
+	private static int compareNullable (String a, String b) {
+	    if (a == null)
+	        return b == null ? 0 : -1;
+	    if (b == null)
+	        return 1;
+	    return a.compareTo(b);
+	}
+	
 	/**
 	 * Find the feed that supersedes this one. This is complicated because if the next feed is
 	 * disabled, we need the one after that, &c., &c.
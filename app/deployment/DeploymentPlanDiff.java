@@ -0,0 +1,203 @@
+/*
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package deployment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.Gson;
+
+import deployment.DeploymentPlan.FeedDescriptor;
+
+import models.SentDeploymentPlan;
+
+/**
+ * The differences between two deployment plans for the same metro, so that a Deployer that can
+ * patch graphs need not rebuild from scratch. It is sent to Deployer along with the full plan.
+ * Feeds are matched by feed ID and bike rental systems by name.
+ *
+ * @author mattwigway
+ */
+public class DeploymentPlanDiff {
+    /** The fingerprint of the previous plan, or null if there was no previous plan */
+    public String previousFingerprint;
+    public String fingerprint;
+
+    /** True if there was no previous plan, in which case everything is added */
+    public boolean full;
+
+    public List<FeedDescriptor> addedFeeds;
+    public List<FeedDescriptor> removedFeeds;
+    public List<FeedChange> changedFeeds;
+
+    public List<String> addedBikeRentalSystems;
+    public List<String> removedBikeRentalSystems;
+    public List<String> changedBikeRentalSystems;
+
+    private DeploymentPlanDiff () {
+        addedFeeds = new ArrayList<FeedDescriptor>();
+        removedFeeds = new ArrayList<FeedDescriptor>();
+        changedFeeds = new ArrayList<FeedChange>();
+        addedBikeRentalSystems = new ArrayList<String>();
+        removedBikeRentalSystems = new ArrayList<String>();
+        changedBikeRentalSystems = new ArrayList<String>();
+    }
+
+    /**
+     * Compare two plans in the JSON form sent to Deployer.
+     * @param previousJson The plan sent last time, or null if there was none.
+     */
+    public static DeploymentPlanDiff between (String previousJson, String previousFingerprint,
+            String json, String fingerprint) {
+        Gson gson = new Gson();
+        DeploymentPlanDiff diff = new DeploymentPlanDiff();
+        diff.previousFingerprint = previousFingerprint;
+        diff.fingerprint = fingerprint;
+        diff.full = previousJson == null;
+
+        PlanData previous = previousJson != null ?
+                gson.fromJson(previousJson, PlanData.class) : new PlanData();
+        PlanData current = gson.fromJson(json, PlanData.class);
+
+        // feeds
+        Map<String, FeedDescriptor> previousFeeds = new LinkedHashMap<String, FeedDescriptor>();
+        if (previous.feeds != null) {
+            for (FeedDescriptor fd : previous.feeds) {
+                previousFeeds.put(fd.getFeedId(), fd);
+            }
+        }
+
+        if (current.feeds != null) {
+            for (FeedDescriptor fd : current.feeds) {
+                FeedDescriptor old = previousFeeds.remove(fd.getFeedId());
+
+                if (old == null) {
+                    diff.addedFeeds.add(fd);
+                    continue;
+                }
+
+                FeedChange change = new FeedChange(old, fd);
+                if (!change.changes.isEmpty())
+                    diff.changedFeeds.add(change);
+            }
+        }
+
+        // whatever is left was not in the new plan
+        diff.removedFeeds.addAll(previousFeeds.values());
+
+        // bike rental systems, compared by their JSON
+        Map<String, String> previousSystems = new LinkedHashMap<String, String>();
+        if (previous.bikeRentalSystems != null) {
+            for (BikeRentalSystemData system : previous.bikeRentalSystems) {
+                previousSystems.put(system.name, gson.toJson(system));
+            }
+        }
+
+        if (current.bikeRentalSystems != null) {
+            for (BikeRentalSystemData system : current.bikeRentalSystems) {
+                String old = previousSystems.remove(system.name);
+
+                if (old == null)
+                    diff.addedBikeRentalSystems.add(system.name);
+                else if (!old.equals(gson.toJson(system)))
+                    diff.changedBikeRentalSystems.add(system.name);
+            }
+        }
+
+        diff.removedBikeRentalSystems.addAll(previousSystems.keySet());
+
+        return diff;
+    }
+
+    /**
+     * Compare a plan with the last plan sent for the metro.
+     * @param sent The last plan sent, or null if none has been sent.
+     */
+    public static DeploymentPlanDiff against (SentDeploymentPlan sent, String json,
+            String fingerprint) {
+        if (sent == null)
+            return between(null, null, json, fingerprint);
+
+        return between(sent.json, sent.fingerprint, json, fingerprint);
+    }
+
+    /**
+     * Is there any difference?
+     */
+    public boolean isEmpty () {
+        return !full && addedFeeds.isEmpty() && removedFeeds.isEmpty() && changedFeeds.isEmpty() &&
+                addedBikeRentalSystems.isEmpty() && removedBikeRentalSystems.isEmpty() &&
+                changedBikeRentalSystems.isEmpty();
+    }
+
+    public String toJson () {
+        return new Gson().toJson(this);
+    }
+
+    /**
+     * A feed that is in both plans but is not included the same way.
+     */
+    public static class FeedChange {
+        public String feedId;
+
+        /** The fields that changed: expireOn, realtimeUrls, defaultAgencyId or defaultBikesAllowed */
+        public List<String> changes;
+
+        public FeedDescriptor previous;
+        public FeedDescriptor current;
+
+        public FeedChange (FeedDescriptor previous, FeedDescriptor current) {
+            this.feedId = current.getFeedId();
+            this.previous = previous;
+            this.current = current;
+            this.changes = new ArrayList<String>();
+
+            if (!equal(previous.getExpireOn(), current.getExpireOn()))
+                changes.add("expireOn");
+
+            if (!Arrays.equals(previous.getRealtimeUrls(), current.getRealtimeUrls()))
+                changes.add("realtimeUrls");
+
+            if (!equal(previous.getDefaultAgencyId(), current.getDefaultAgencyId()))
+                changes.add("defaultAgencyId");
+
+            if (previous.getDefaultBikesAllowed() != current.getDefaultBikesAllowed())
+                changes.add("defaultBikesAllowed");
+        }
+
+        private static boolean equal (String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    // The plan JSON is read back into these; they mirror the proxies in DeploymentPlan.
+    private static class PlanData {
+        private FeedDescriptor[] feeds;
+        private List<BikeRentalSystemData> bikeRentalSystems;
+    }
+
+    @SuppressWarnings("unused")
+    private static class BikeRentalSystemData {
+        private String name;
+        private String type;
+        private String url;
+        private String currency;
+        private List<String> fareClasses;
+    }
+}
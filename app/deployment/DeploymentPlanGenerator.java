@@ -0,0 +1,235 @@
+/*
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package deployment;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import models.MetroArea;
+import models.SentDeploymentPlan;
+import play.Logger;
+import play.Play;
+import play.db.jpa.JPAPlugin;
+import utils.HashUtils;
+
+/**
+ * Builds and sends deployment plans for many metros at once. Plans are built by a pool of workers,
+ * each in its own transaction, and handed to a DeployerSender as they are finished, so a full
+ * redeploy takes about as long as the slowest metro rather than the sum of all of them.
+ *
+ * @author mattwigway
+ */
+public class DeploymentPlanGenerator {
+    private static List<MetroResult> lastResults = new ArrayList<MetroResult>();
+
+    /**
+     * Build plans for the given metros, and send them to the given URL unless it is null. Plans
+     * are built in other transactions, so changes this thread has not committed are not seen;
+     * the plans sent, and the rebuilds of metros whose plans could not be sent, are recorded in
+     * this thread's transaction.
+     * @param force send plans even if they are the same as the last plan sent for the metro.
+     * @return the outcome for each metro, in the same order as areas.
+     */
+    public static List<MetroResult> generate (Collection<MetroArea> areas, String url,
+            boolean force) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(getConfig("plan_threads", 4));
+        DeployerSender sender = null;
+        List<Future<MetroResult>> futures = new ArrayList<Future<MetroResult>>();
+        List<MetroResult> results = new ArrayList<MetroResult>();
+        long start = System.currentTimeMillis();
+
+        if (url != null) {
+            sender = new DeployerSender(getConfig("send_threads", 4),
+                    getConfig("send_queue_size", 16), getConfig("send_attempts", 3),
+                    getConfig("send_backoff_ms", 1000));
+        }
+
+        try {
+            for (MetroArea area : areas) {
+                futures.add(executor.submit(new PlanTask(area.id, url, sender, force)));
+            }
+
+            for (Future<MetroResult> future : futures) {
+                MetroResult result;
+
+                try {
+                    result = future.get();
+                } catch (ExecutionException e) {
+                    // PlanTask catches everything, so this should not happen
+                    throw new RuntimeException(e.getCause());
+                }
+
+                if (result.sending != null) {
+                    try {
+                        result.attempts = result.sending.get();
+                        result.status = MetroResult.Status.SENT;
+                        SentDeploymentPlan.record(result.metroId, result.fingerprint,
+                                result.json);
+                        Logger.info("Sent deployment plan %s for metro %s (id %s)",
+                                result.fingerprint, result.metro, result.metroId);
+                    } catch (ExecutionException e) {
+                        Logger.error("Failed to send deployment plan for metro %s", result.metroId);
+                        e.getCause().printStackTrace();
+                        result.status = MetroResult.Status.SEND_FAILED;
+                        result.error = e.getCause().getMessage();
+
+                        // building the plan cleared the metro's due rebuilds, and that has been
+                        // committed, so schedule another or the metro would never be sent
+                        MetroArea area = MetroArea.findById(result.metroId);
+                        if (area != null) {
+                            DeploymentPlanScheduler.scheduleRebuild(area, new Date(
+                                    System.currentTimeMillis() + RebuildQueue.getRetryMillis()));
+                        }
+                    }
+                }
+
+                results.add(result);
+            }
+        } finally {
+            executor.shutdownNow();
+            if (sender != null)
+                sender.shutdown();
+        }
+
+        Logger.info("Generated deployment plans for %s metros in %s ms", results.size(),
+                System.currentTimeMillis() - start);
+
+        lastResults = results;
+        return results;
+    }
+
+    /**
+     * @return the outcome for each metro in the last call to generate.
+     */
+    public static List<MetroResult> getLastResults () {
+        return lastResults;
+    }
+
+    private static int getConfig (String key, int defaultValue) {
+        return Integer.parseInt(Play.configuration.getProperty("dashboard.deployment." + key,
+                Integer.toString(defaultValue)));
+    }
+
+    /**
+     * Build the plan for one metro in its own transaction, and queue it to be sent.
+     */
+    private static class PlanTask implements Callable<MetroResult> {
+        private Long metroId;
+        private String url;
+        private DeployerSender sender;
+        private boolean force;
+
+        public PlanTask (Long metroId, String url, DeployerSender sender, boolean force) {
+            this.metroId = metroId;
+            this.url = url;
+            this.sender = sender;
+            this.force = force;
+        }
+
+        public MetroResult call () throws InterruptedException {
+            MetroResult result = new MetroResult(metroId);
+            long start = System.currentTimeMillis();
+            boolean rollback = true;
+
+            // not read only, as building a plan reschedules the metro's rebuilds
+            JPAPlugin.startTx(false);
+            try {
+                MetroArea area = MetroArea.findById(metroId);
+                result.metro = area.name;
+                result.plan = new DeploymentPlan(area);
+                result.json = result.plan.toJson();
+                result.fingerprint = HashUtils.sha256(result.json);
+
+                SentDeploymentPlan sent = SentDeploymentPlan.findByMetroAreaId(metroId);
+
+                if (!force && sent != null && result.fingerprint.equals(sent.fingerprint)) {
+                    Logger.info("Deployment plan for metro %s (id %s) is unchanged, not sending",
+                            area.name, metroId);
+                    result.status = MetroResult.Status.UNCHANGED;
+                }
+                else {
+                    result.diff = DeploymentPlanDiff.against(sent, result.json,
+                            result.fingerprint).toJson();
+                }
+
+                rollback = false;
+            } catch (Exception e) {
+                Logger.error("Failed to build deployment plan for metro %s", metroId);
+                e.printStackTrace();
+                result.status = MetroResult.Status.PLAN_FAILED;
+                result.error = e.getMessage();
+            } finally {
+                JPAPlugin.closeTx(rollback);
+            }
+
+            result.planMillis = System.currentTimeMillis() - start;
+
+            if (result.status == MetroResult.Status.NOT_SENT && result.json != null &&
+                    sender != null) {
+                result.sending = sender.send(url, result.json, result.diff, "metro " +
+                        result.metro + " (id " + metroId + ")");
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * The outcome of building and sending the deployment plan for one metro.
+     */
+    public static class MetroResult {
+        public static enum Status {
+            SENT, UNCHANGED, NOT_SENT, PLAN_FAILED, SEND_FAILED;
+        }
+
+        public Long metroId;
+        public String metro;
+        public Status status;
+
+        /** How long it took to build the plan */
+        public long planMillis;
+
+        /** How many requests it took to send the plan */
+        public int attempts;
+
+        public String error;
+
+        /** The SHA-256 of the plan JSON */
+        public String fingerprint;
+
+        /** The plan, built in another transaction; not shown in the admin interface */
+        public transient DeploymentPlan plan;
+
+        transient String json;
+        transient String diff;
+        transient Future<Integer> sending;
+
+        public MetroResult (Long metroId) {
+            this.metroId = metroId;
+            this.status = Status.NOT_SENT;
+            this.attempts = 0;
+            this.plan = null;
+            this.sending = null;
+        }
+    }
+}
@@ -40,20 +40,19 @@ public class DeploymentPlanScheduler {
     }
     
     /**
-     * Schedule a rebuild for the given metro area on the given date
+     * Schedule a rebuild for the given metro area on the given date. The rebuild is queued once
+     * the current transaction commits.
      */
     public static void scheduleRebuild(MetroArea area, Date date) {
         new ScheduledRebuild(area, date).save();
+        RebuildQueue.addAfterCommit(date);
     }
     
     /**
      * Clear all scheduled rebuilds for the given metro
      */
     public static void clearRebuilds(MetroArea area) {
-        for (ScheduledRebuild rebuild : 
-                ScheduledRebuild.find("byMetroArea", area).<ScheduledRebuild>fetch()) {
-            rebuild.delete();
-        }
+        ScheduledRebuild.delete("metroArea = ?", area);
     }
     
     /**
@@ -73,17 +72,25 @@ public class DeploymentPlanScheduler {
      * Return all the metros that need to be updated
      */
     public static Set<MetroArea> getMetroAreasNeedingUpdate () {
-        Date now = new Date();
-        Set<MetroArea> ret = new HashSet<MetroArea>();
-        
-        for (ScheduledRebuild rebuild : ScheduledRebuild.<ScheduledRebuild>findAll()) {
-            if (rebuild.rebuildAfter != null && now.compareTo(rebuild.rebuildAfter) >= 0)
-                if (rebuild.metroArea != null)
-                    ret.add(rebuild.metroArea);
-                
-        }   
-                
-        return ret;
+        List<MetroArea> due = MetroArea.find("SELECT DISTINCT r.metroArea FROM ScheduledRebuild r " +
+                "WHERE r.rebuildAfter <= ?", new Date()).fetch();
+        return new HashSet<MetroArea>(due);
+    }
+    
+    /**
+     * Get the time the longest-waiting rebuild that is due became due, or null if none are due.
+     */
+    public static Date getOldestDueRebuild () {
+        return ScheduledRebuild.find("SELECT min(r.rebuildAfter) FROM ScheduledRebuild r " +
+                "WHERE r.rebuildAfter <= ?", new Date()).first();
+    }
+    
+    /**
+     * Get the times of all the scheduled rebuilds, each once.
+     */
+    public static List<Date> getRebuildTimes () {
+        return ScheduledRebuild.find("SELECT DISTINCT r.rebuildAfter FROM ScheduledRebuild r " +
+                "WHERE r.rebuildAfter IS NOT NULL").fetch();
     }
     
     /**
@@ -95,18 +102,21 @@ public class DeploymentPlanScheduler {
     
     /**
      * Generate deployment plans for all the metros that need them, and send them to the given URL.
+     * The plans are built and sent in parallel by DeploymentPlanGenerator.
      */
     public static List<DeploymentPlan> generatePlans (String url) {
         List<DeploymentPlan> plans = new ArrayList<DeploymentPlan>();
-        DeploymentPlan plan;
+        List<DeploymentPlanGenerator.MetroResult> results;
+        
+        try {
+            results = DeploymentPlanGenerator.generate(getMetroAreasNeedingUpdate(), url, false);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException("Interrupted while generating deployment plans");
+        }
         
-        for (MetroArea area : getMetroAreasNeedingUpdate()) {
-            plan = new DeploymentPlan(area);
-            plans.add(plan);
-            
-            if (url != null) {
-                plan.sendTo(url);
-            }
+        for (DeploymentPlanGenerator.MetroResult result : results) {
+            if (result.plan != null)
+                plans.add(result.plan);
         }
         
         return plans;
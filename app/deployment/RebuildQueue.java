@@ -0,0 +1,194 @@
+/*
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package deployment;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import jobs.RunScheduledRebuilds;
+import models.ScheduledRebuild;
+import play.Logger;
+import play.Play;
+import utils.TransactionUtils;
+
+/**
+ * Keeps the times of the scheduled rebuilds in memory, earliest first, and schedules a job to run
+ * the rebuilds when the earliest falls due, rather than polling the database. Only one wakeup is
+ * pending at a time; if an earlier rebuild is scheduled, a new wakeup is scheduled for it and the
+ * pending one does nothing when it runs.
+ *
+ * The queue is only a hint for when to look: the ScheduledRebuild table is authoritative, so times
+ * left over from rebuilds that have since been cleared just cause a wakeup that finds nothing due.
+ *
+ * @author mattwigway
+ */
+public class RebuildQueue {
+    private static PriorityQueue<Long> dueTimes = new PriorityQueue<Long>();
+
+    /** When the pending wakeup is scheduled for, or Long.MAX_VALUE if there is none */
+    private static long wakeup = Long.MAX_VALUE;
+
+    private static long runs = 0;
+    private static Date lastRun = null;
+    private static int lastMetros = 0;
+    private static long lastLatencyMillis = 0;
+    private static long maxLatencyMillis = 0;
+
+    /**
+     * Add the time of a scheduled rebuild to the queue.
+     */
+    public static synchronized void add (Date due) {
+        if (due == null)
+            return;
+
+        dueTimes.add(due.getTime());
+        wakeUpBy(due.getTime());
+    }
+
+    /**
+     * Add the time of a scheduled rebuild to the queue once the current transaction commits, so
+     * that the wakeup for it cannot run before the rebuild can be seen in the database. Nothing is
+     * added if the transaction is rolled back, and it is added at once if there is no transaction.
+     */
+    public static void addAfterCommit (final Date due) {
+        TransactionUtils.afterCommit(new Runnable () {
+            public void run () {
+                add(due);
+            }
+        });
+    }
+
+    /**
+     * Load the times of the rebuilds scheduled before the application started. Must be called in
+     * a JPA transaction.
+     */
+    public static void load () {
+        int count = 0;
+
+        for (Date due : DeploymentPlanScheduler.getRebuildTimes()) {
+            add(due);
+            count++;
+        }
+
+        Logger.info("Loaded %s scheduled rebuild times", count);
+    }
+
+    /**
+     * Make sure a wakeup is scheduled at or before the given time. Must be called with the lock held.
+     */
+    private static void wakeUpBy (long time) {
+        if (time >= wakeup || !isEnabled())
+            return;
+
+        wakeup = time;
+        long seconds = (time - System.currentTimeMillis() + 999) / 1000;
+        new RunScheduledRebuilds(time).in((int) Math.min(Math.max(seconds, 0), Integer.MAX_VALUE));
+    }
+
+    /**
+     * Rebuild the metros that are due, if the wakeup for the given time is still the pending one.
+     * Must be called in a JPA transaction.
+     */
+    public static void run (long scheduledFor) {
+        long now = System.currentTimeMillis();
+
+        synchronized (RebuildQueue.class) {
+            if (scheduledFor != wakeup)
+                // an earlier wakeup was scheduled after this one
+                return;
+
+            wakeup = Long.MAX_VALUE;
+
+            while (!dueTimes.isEmpty() && dueTimes.peek() <= now) {
+                dueTimes.poll();
+            }
+        }
+
+        try {
+            Date oldest = DeploymentPlanScheduler.getOldestDueRebuild();
+
+            if (oldest != null) {
+                int metros = DeploymentPlanScheduler.generatePlans(
+                        Play.configuration.getProperty("dashboard.send_deployer_requests_to")).size();
+
+                synchronized (RebuildQueue.class) {
+                    runs++;
+                    lastRun = new Date(now);
+                    lastMetros = metros;
+                    lastLatencyMillis = now - oldest.getTime();
+                    maxLatencyMillis = Math.max(maxLatencyMillis, lastLatencyMillis);
+                }
+
+                Logger.info("Ran scheduled rebuilds for %s metros, %s ms after the first was due",
+                        metros, now - oldest.getTime());
+
+                // metros whose plans could not be built are still due
+                if (!DeploymentPlanScheduler.getMetroAreasNeedingUpdate().isEmpty()) {
+                    add(new Date(System.currentTimeMillis() + getRetryMillis()));
+                }
+            }
+        } finally {
+            synchronized (RebuildQueue.class) {
+                if (!dueTimes.isEmpty())
+                    wakeUpBy(dueTimes.peek());
+            }
+        }
+    }
+
+    /**
+     * Get the queue depth and rebuild latency, for display in the admin interface. Must be called
+     * in a JPA transaction.
+     */
+    public static Map<String, Object> getStatus () {
+        Map<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put("enabled", isEnabled());
+        status.put("scheduledRebuilds", ScheduledRebuild.count());
+        status.put("dueMetros", DeploymentPlanScheduler.getMetroAreasNeedingUpdate().size());
+
+        synchronized (RebuildQueue.class) {
+            status.put("queuedTimes", dueTimes.size());
+            status.put("nextWakeup", wakeup != Long.MAX_VALUE ? new Date(wakeup) : null);
+            status.put("runs", runs);
+            status.put("lastRun", lastRun);
+            status.put("lastMetros", lastMetros);
+            status.put("lastLatencyMillis", lastLatencyMillis);
+            status.put("maxLatencyMillis", maxLatencyMillis);
+        }
+
+        return status;
+    }
+
+    /**
+     * Rebuilds are only run automatically if deployer requests are sent automatically; otherwise
+     * building the plans would clear the scheduled rebuilds without anything being deployed.
+     */
+    private static boolean isEnabled () {
+        return Boolean.parseBoolean(
+                Play.configuration.getProperty("dashboard.run_scheduled_rebuilds", "true")) &&
+            Boolean.parseBoolean(
+                Play.configuration.getProperty("dashboard.send_requests_automatically"));
+    }
+
+    /**
+     * Get how long to wait before trying a rebuild again.
+     */
+    public static long getRetryMillis () {
+        return 1000L * Integer.parseInt(
+                Play.configuration.getProperty("dashboard.rebuild_retry_seconds", "3600"));
+    }
+}
@@ -0,0 +1,154 @@
+/*
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package deployment;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import models.GtfsFeed;
+import models.MetroArea;
+import models.NtdAgency;
+
+/**
+ * All the feeds in the chains of supersession of a metro area's agencies, loaded up front so that
+ * the deployment planner can walk the chains without a query for each step.
+ *
+ * The metro's agencies and their feeds are loaded in one query. The feeds they supersede are then
+ * loaded one level of supersession at a time, in one query per level for all the chains at once;
+ * usually all the feeds in a chain belong to the agency, and the first level finds nothing new.
+ *
+ * @author mattwigway
+ */
+public class SupersessionGraph {
+    /** Keep IN lists to a reasonable size */
+    private static final int BATCH_SIZE = 500;
+
+    /** The feeds each feed superseded, by the ID of the superseding feed */
+    private Map<Long, List<GtfsFeed>> superseded;
+
+    private int queryCount;
+
+    public SupersessionGraph (MetroArea area) {
+        superseded = new HashMap<Long, List<GtfsFeed>>();
+        queryCount = 0;
+
+        // this initializes area.agencies, and agency.feeds and feed.realtimeUrls for each agency
+        MetroArea.find("SELECT DISTINCT m FROM MetroArea m LEFT JOIN FETCH m.agencies a " +
+                "LEFT JOIN FETCH a.feeds f LEFT JOIN FETCH f.realtimeUrls WHERE m = ?", area).fetch();
+        queryCount++;
+
+        Set<Long> known = new HashSet<Long>();
+        for (NtdAgency agency : area.agencies) {
+            for (GtfsFeed feed : agency.feeds) {
+                known.add(feed.id);
+            }
+        }
+
+        List<Long> frontier = new ArrayList<Long>(known);
+
+        while (!frontier.isEmpty()) {
+            List<Long> next = new ArrayList<Long>();
+
+            for (int i = 0; i < frontier.size(); i += BATCH_SIZE) {
+                List<Long> batch = frontier.subList(i, Math.min(i + BATCH_SIZE, frontier.size()));
+
+                List<GtfsFeed> older = GtfsFeed.find("SELECT DISTINCT f FROM GtfsFeed f " +
+                        "LEFT JOIN FETCH f.realtimeUrls WHERE f.supersededBy.id IN (:ids)")
+                        .bind("ids", batch).fetch();
+                queryCount++;
+
+                for (GtfsFeed feed : older) {
+                    Long supersededBy = feed.supersededBy.id;
+                    List<GtfsFeed> feeds = superseded.get(supersededBy);
+                    if (feeds == null) {
+                        feeds = new ArrayList<GtfsFeed>();
+                        superseded.put(supersededBy, feeds);
+                    }
+                    feeds.add(feed);
+
+                    if (known.add(feed.id))
+                        next.add(feed.id);
+                }
+            }
+
+            frontier = next;
+        }
+    }
+
+    /**
+     * Find the feed superseded by the given feed with the latest start date; equivalent to
+     * GtfsFeed.find("supersededBy = ? ORDER BY startDate DESC", feed).first().
+     */
+    public GtfsFeed findOlderByStartDate (GtfsFeed feed) {
+        GtfsFeed ret = null;
+
+        List<GtfsFeed> feeds = superseded.get(feed.id);
+        if (feeds == null)
+            return null;
+
+        for (GtfsFeed older : feeds) {
+            if (ret == null || isLater(older.startDate, ret.startDate))
+                ret = older;
+        }
+
+        return ret;
+    }
+
+    /**
+     * Find the feed superseded by the given feed with the latest expiration date; equivalent to
+     * GtfsFeed.find("supersededBy = ? ORDER BY expirationDate DESC", feed).first().
+     */
+    public GtfsFeed findOlderByExpirationDate (GtfsFeed feed) {
+        GtfsFeed ret = null;
+
+        List<GtfsFeed> feeds = superseded.get(feed.id);
+        if (feeds == null)
+            return null;
+
+        for (GtfsFeed older : feeds) {
+            if (ret == null || isLater(older.expirationDate, ret.expirationDate))
+                ret = older;
+        }
+
+        return ret;
+    }
+
+    /**
+     * Does a sort before b in descending order? PostgreSQL sorts nulls first in descending order,
+     * so null is later than any date.
+     */
+    private static boolean isLater (Date a, Date b) {
+        if (b == null)
+            return false;
+
+        if (a == null)
+            return true;
+
+        return a.compareTo(b) > 0;
+    }
+
+    /**
+     * Get the number of queries used to load the graph.
+     */
+    public int getQueryCount () {
+        return queryCount;
+    }
+}
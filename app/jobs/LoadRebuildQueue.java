@@ -0,0 +1,31 @@
+/* 
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+*/
+
+package jobs;
+
+import deployment.RebuildQueue;
+import play.jobs.Job;
+import play.jobs.OnApplicationStart;
+
+/**
+ * Load the rebuilds that were scheduled before the application started into the rebuild queue.
+ * @author mattwigway
+ */
+@OnApplicationStart
+public class LoadRebuildQueue extends Job {
+    public void doJob () {
+        RebuildQueue.load();
+    }
+}
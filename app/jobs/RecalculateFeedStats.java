@@ -1,42 +1,243 @@
 package jobs;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import models.FeedParseStatus;
+import models.FeedStatsRecalculation;
 import models.GtfsFeed;
 import play.Logger;
+import play.Play;
+import play.db.jpa.JPAPlugin;
 import play.db.jpa.NoTransaction;
 import play.jobs.Job;
 import play.modules.spring.Spring;
+import updaters.FeedStatsCache;
 import updaters.FeedStatsCalculator;
 import updaters.FeedStorer;
+import updaters.MemoryBudget;
 import updaters.UpdaterFactory;
 
+/**
+ * Recalculate the stats for all the feeds that parsed successfully, e.g. after an OneBusAway
+ * upgrade. Feeds are processed in batches by a pool of workers, and each batch is committed in its
+ * own short transaction along with a checkpoint in FeedStatsRecalculation; if the application is
+ * restarted partway through, the next run picks up after the last committed batch.
+ *
+ * @author mattwigway
+ */
+@NoTransaction
 public class RecalculateFeedStats extends Job {
+    /** Is a recalculation running? This prevents two runs from recalculating the same feeds */
+    private static AtomicBoolean running = new AtomicBoolean(false);
+
+    public static boolean isRunning () {
+        return running.get();
+    }
+
     public void doJob () {
-        FeedStatsCalculator stats;
-        File feedFile;
+        if (!running.compareAndSet(false, true)) {
+            Logger.warn("Not recalculating feed stats more than once concurrently!");
+            return;
+        }
+
+        try {
+            recalculate();
+        } catch (InterruptedException e) {
+            Logger.warn("Feed stats recalculation interrupted, it will resume from the last checkpoint");
+        } catch (ExecutionException e) {
+            Logger.error("Error recalculating feed stats, it will resume from the last checkpoint");
+            e.printStackTrace();
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private void recalculate () throws InterruptedException, ExecutionException {
+        int threads = Integer.parseInt(
+                Play.configuration.getProperty("dashboard.recalculate.threads", "4"));
+        int batchSize = Integer.parseInt(
+                Play.configuration.getProperty("dashboard.recalculate.batch_size", "20"));
+        int memoryBudgetMb = Integer.parseInt(
+                Play.configuration.getProperty("dashboard.recalculate.memory_budget_mb", "1024"));
+
         UpdaterFactory updaterFactory = Spring.getBeanOfType(UpdaterFactory.class);
         FeedStorer storer = updaterFactory.getStorer();
-        
-        for (GtfsFeed feed : GtfsFeed.<GtfsFeed>findAll()) {
-            if (feed.status == FeedParseStatus.FAILED)
-                // no reason to reparse a failed feed
-                continue;
-            
+
+        FeedStatsRecalculation recalc;
+        Long recalcId;
+        boolean rollback = true;
+
+        JPAPlugin.startTx(false);
+        try {
+            recalc = FeedStatsRecalculation.findUnfinished();
+            if (recalc == null) {
+                recalc = new FeedStatsRecalculation(
+                        GtfsFeed.count("status != ?", FeedParseStatus.FAILED));
+                recalc.save();
+            }
+            else {
+                Logger.info("Resuming feed stats recalculation after feed %s", recalc.lastFeedId);
+            }
+            recalcId = recalc.id;
+            rollback = false;
+        } finally {
+            JPAPlugin.closeTx(rollback);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        MemoryBudget memory = new MemoryBudget(memoryBudgetMb);
+
+        try {
+            while (true) {
+                long batchStart = System.currentTimeMillis();
+                List<FeedStatsTask> tasks = new ArrayList<FeedStatsTask>();
+
+                JPAPlugin.startTx(true);
+                try {
+                    recalc = FeedStatsRecalculation.findById(recalcId);
+                    // no reason to reparse a failed feed
+                    List<GtfsFeed> feeds = GtfsFeed.find("id > ? AND status != ? ORDER BY id",
+                            recalc.lastFeedId, FeedParseStatus.FAILED).fetch(batchSize);
+
+                    for (GtfsFeed feed : feeds) {
+                        tasks.add(new FeedStatsTask(feed.id, feed.storedId, storer, memory));
+                    }
+                } finally {
+                    JPAPlugin.closeTx(false);
+                }
+
+                if (tasks.isEmpty())
+                    break;
+
+                List<Future<FeedStatsTask>> results = executor.invokeAll(tasks);
+
+                rollback = true;
+                JPAPlugin.startTx(false);
+                try {
+                    recalc = FeedStatsRecalculation.findById(recalcId);
+
+                    for (Future<FeedStatsTask> result : results) {
+                        FeedStatsTask task = result.get();
+
+                        if (task.stats == null) {
+                            recalc.feedsFailed++;
+                            continue;
+                        }
+
+                        GtfsFeed feed = GtfsFeed.findById(task.feedId);
+
+                        if (feed == null) {
+                            Logger.warn("Feed %s was deleted while its stats were recalculated, skipping",
+                                    task.feedId);
+                            continue;
+                        }
+
+                        task.stats.apply(feed);
+                        feed.save();
+                        feed.updateAgencyGeoms();
+
+                        recalc.feedsProcessed++;
+                        recalc.bytesProcessed += task.bytes;
+                    }
+
+                    recalc.lastFeedId = tasks.get(tasks.size() - 1).feedId;
+                    recalc.updated = new Date();
+                    recalc.millisRunning += recalc.updated.getTime() - batchStart;
+                    recalc.save();
+                    rollback = false;
+                } finally {
+                    JPAPlugin.closeTx(rollback);
+                }
+
+                Logger.info("Recalculated stats for %s of %s feeds (%.1f feeds/min)",
+                        recalc.feedsProcessed + recalc.feedsFailed, recalc.feedsTotal,
+                        recalc.getFeedsPerMinute());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        rollback = true;
+        JPAPlugin.startTx(false);
+        try {
+            recalc = FeedStatsRecalculation.findById(recalcId);
+            recalc.finished = new Date();
+            recalc.save();
+            rollback = false;
+        } finally {
+            JPAPlugin.closeTx(rollback);
+        }
+
+        Logger.info("Finished recalculating feed stats: %s feeds processed, %s failed",
+                recalc.feedsProcessed, recalc.feedsFailed);
+    }
+
+    /**
+     * Calculate the stats for a single feed, outside the transaction that saves them.
+     */
+    private static class FeedStatsTask implements Callable<FeedStatsTask> {
+        public long feedId;
+        public String storedId;
+
+        /** The calculated stats, or null if they could not be calculated */
+        public FeedStatsCalculator stats;
+
+        /** The size of the GTFS file */
+        public long bytes;
+
+        private FeedStorer storer;
+        private MemoryBudget memory;
+
+        public FeedStatsTask (long feedId, String storedId, FeedStorer storer, MemoryBudget memory) {
+            this.feedId = feedId;
+            this.storedId = storedId;
+            this.storer = storer;
+            this.memory = memory;
+            this.stats = null;
+            this.bytes = 0;
+        }
+
+        public FeedStatsTask call () {
+            File feedFile = null;
+
             try {
-                feedFile = storer.getFeed(feed.storedId);
-                stats = new FeedStatsCalculator(feedFile);
-                stats.apply(feed);
-                storer.releaseFeed(feed.storedId);
+                feedFile = storer.getFeed(storedId);
+                bytes = feedFile.length();
+
+                int reserved = memory.acquire(feedFile);
+                try {
+                    // the stats cache needs a transaction of its own in this thread
+                    boolean rollback = true;
+                    JPAPlugin.startTx(false);
+                    try {
+                        stats = FeedStatsCache.getStats(feedFile);
+                        rollback = false;
+                    } finally {
+                        JPAPlugin.closeTx(rollback);
+                    }
+                } finally {
+                    memory.release(reserved);
+                }
             } catch (Exception e) {
-                Logger.error("Error calculating feed stats for agency %s, this must be an OBA " +
-                		"change or file system error", feed.agencyName);
+                Logger.error("Error calculating feed stats for feed %s, this must be an OBA " +
+                        "change or file system error", storedId);
                 e.printStackTrace();
-                continue;
+                stats = null;
+            } finally {
+                if (feedFile != null)
+                    storer.releaseFeed(storedId);
             }
-            
-            feed.save();
+
+            return this;
         }
     }
 }
@@ -0,0 +1,35 @@
+/* 
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+*/
+
+package jobs;
+
+import deployment.RebuildQueue;
+import play.jobs.Job;
+
+/**
+ * Run the scheduled rebuilds that are due; scheduled by RebuildQueue for when the next one falls due.
+ * @author mattwigway
+ */
+public class RunScheduledRebuilds extends Job {
+    private long scheduledFor;
+    
+    public RunScheduledRebuilds (long scheduledFor) {
+        this.scheduledFor = scheduledFor;
+    }
+    
+    public void doJob () {
+        RebuildQueue.run(scheduledFor);
+    }
+}
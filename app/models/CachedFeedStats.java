@@ -0,0 +1,63 @@
+/* 
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+*/
+
+package models;
+
+import java.util.Date;
+import java.util.TimeZone;
+
+import javax.persistence.Entity;
+
+import org.hibernate.annotations.Index;
+import org.hibernate.annotations.Type;
+
+import com.vividsolutions.jts.geom.MultiPolygon;
+
+import play.db.jpa.Model;
+
+/**
+ * The feed stats calculated for a GTFS zip file, so that a byte-identical file is never parsed
+ * twice. Entries are keyed by the SHA-256 of the file and the version of the calculator that
+ * produced them; bumping FeedStatsCalculator.VERSION effectively invalidates the whole cache.
+ * 
+ * @author mattwigway
+ */
+@Entity
+public class CachedFeedStats extends Model {
+    /** The hex SHA-256 of the GTFS zip */
+    @Index(name = "cachedfeedstats_sha256_idx")
+    public String sha256;
+    
+    /** The FeedStatsCalculator.VERSION that calculated these stats */
+    public int calculatorVersion;
+    
+    /** When these stats were calculated */
+    public Date dateCalculated;
+    
+    public Date startDate;
+    
+    public Date endDate;
+    
+    @Type(type = "org.hibernatespatial.GeometryUserType")
+    public MultiPolygon the_geom;
+    
+    public int stops;
+    
+    public TimeZone timezone;
+    
+    public String agencyName;
+    
+    public String agencyUrl;
+}
@@ -0,0 +1,91 @@
+/*
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package models;
+
+import java.util.Date;
+
+import javax.persistence.Entity;
+
+import play.db.jpa.Model;
+
+/**
+ * The progress of a run of RecalculateFeedStats. Feeds are processed in order of ID, and
+ * lastFeedId is only advanced once a batch is committed, so a run that is interrupted can be
+ * resumed from lastFeedId.
+ *
+ * @author mattwigway
+ */
+@Entity
+public class FeedStatsRecalculation extends Model {
+    /** When this recalculation was started */
+    public Date started;
+
+    /** When the last batch was committed */
+    public Date updated;
+
+    /** When this recalculation finished, or null if it has not */
+    public Date finished;
+
+    /** The ID of the last feed in the last committed batch */
+    public long lastFeedId;
+
+    /** The number of feeds to process, counted when the recalculation was started */
+    public long feedsTotal;
+
+    public long feedsProcessed;
+
+    public long feedsFailed;
+
+    /** The total size of the GTFS files processed */
+    public long bytesProcessed;
+
+    /** The time spent processing batches, summed over this run and any interrupted runs it resumed */
+    public long millisRunning;
+
+    public FeedStatsRecalculation (long feedsTotal) {
+        this.started = new Date();
+        this.updated = this.started;
+        this.finished = null;
+        this.lastFeedId = 0;
+        this.feedsTotal = feedsTotal;
+        this.feedsProcessed = 0;
+        this.feedsFailed = 0;
+        this.bytesProcessed = 0;
+        this.millisRunning = 0;
+    }
+
+    /**
+     * Get the unfinished recalculation to resume, or null if there is none.
+     */
+    public static FeedStatsRecalculation findUnfinished () {
+        return FeedStatsRecalculation.find("finished IS NULL ORDER BY started DESC").first();
+    }
+
+    /**
+     * Get the most recently started recalculation, finished or not, or null if there is none.
+     */
+    public static FeedStatsRecalculation findLatest () {
+        return FeedStatsRecalculation.find("ORDER BY started DESC").first();
+    }
+
+    public double getFeedsPerMinute () {
+        return millisRunning > 0 ? feedsProcessed * 60000d / millisRunning : 0;
+    }
+
+    public double getBytesPerSecond () {
+        return millisRunning > 0 ? bytesProcessed * 1000d / millisRunning : 0;
+    }
+}
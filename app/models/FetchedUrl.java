@@ -0,0 +1,56 @@
+/*
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package models;
+
+import java.util.Date;
+
+import javax.persistence.Entity;
+
+import org.hibernate.annotations.Index;
+
+import play.db.jpa.Model;
+
+/**
+ * The cache validators a server sent for a URL the last time its content was processed, so that
+ * the next request can be conditional.
+ *
+ * @author mattwigway
+ */
+@Entity
+public class FetchedUrl extends Model {
+    @Index(name = "fetchedurl_url_idx")
+    public String url;
+
+    /** The ETag header, or null if the server did not send one */
+    public String etag;
+
+    /** The Last-Modified header, exactly as the server sent it, or null */
+    public String lastModified;
+
+    /** The Content-Length header, or null */
+    public Long contentLength;
+
+    /** When content with these validators was processed */
+    public Date lastChanged;
+
+    public FetchedUrl (String url) {
+        this.url = url;
+    }
+
+    public static FetchedUrl findByUrl (String url) {
+        return FetchedUrl.find("url = ?", url).first();
+    }
+}
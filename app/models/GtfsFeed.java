@@ -18,15 +18,19 @@ package models;
 import javax.persistence.*;
 
 import java.util.*;
-import java.math.BigInteger;
 
 import play.Logger;
 import play.db.jpa.*;
 import play.data.validation.*;
 import com.vividsolutions.jts.geom.MultiPolygon;
+import org.hibernate.annotations.Index;
 import org.hibernate.annotations.Type;
+import utils.AgencyListCache;
+import utils.TileCache;
+import utils.UrlUtils;
 
 @Entity
+@EntityListeners({AgencyListCache.Invalidator.class, TileCache.Invalidator.class})
 public class GtfsFeed extends Model implements Cloneable {
 
     /** The name of this agency, customer-facing */
@@ -125,6 +129,10 @@ public class GtfsFeed extends Model implements Cloneable {
     @URL
     public String agencyUrl;
 
+    /** The normalized domain of agencyUrl, which feeds are matched to agencies on; set when saved */
+    @Index(name = "gtfsfeed_agencydomain_idx")
+    public String agencyDomain;
+
     // TODO: time period
     /** The number of trips in this GTFS */
     public int trips;
@@ -264,33 +272,45 @@ public class GtfsFeed extends Model implements Cloneable {
     	return ret;	
     }
 
+    /**
+     * Store the new geometries of the agencies of this feed, after it has been added to them or
+     * its geometry has changed.
+     */
+    public void updateAgencyGeoms () {
+        for (NtdAgency agency : getAgencies()) {
+            agency.updateFeedsGeom();
+        }
+    }
+
     /**
      * Attempt to automatically find and link this feed to agencies.
      * @return true if matching was successful, false otherwise
      */
     public boolean findAgency() {
-        Query q = JPA.em().createNativeQuery("SELECT a.id FROM NtdAgency a WHERE regexp_replace(LOWER(?), " + 
-                                       // that regular expression strips the protocol, 
-                                       // strips pathinfo,
-                                       // and strips www. to get a hopefully LCD domain name
-                                       "'(?:\\W*)(?:https?://)?(?:www\\.)?([a-zA-Z0-9\\-_\\.]*)(?:/.*)?(?:\\W*)'," +
-                                       "'\\1') = " + 
-                                       "regexp_replace(LOWER(a.url)," + 
-                                       "'(?:\\W*)(?:https?://)?(?:www\\.)?([a-zA-Z0-9\\-_\\.]*)(?:/.*)?(?:\\W*)'," +
-                                       "'\\1');");
-        q.setParameter(1, this.agencyUrl);
-        List<Object> results = q.getResultList();
+        String domain = UrlUtils.normalizeDomain(this.agencyUrl);
         
-        if (results.size() == 0)
+        if (domain == null)
+            return false;
+        
+        List<NtdAgency> agencies = NtdAgency.find("domain = ?", domain).fetch();
+        
+        if (agencies.size() == 0)
             return false;
         else {
-            NtdAgency agency;
-            for (Object result : results) {
-                agency = NtdAgency.findById(((BigInteger) result).longValue());
+            for (NtdAgency agency : agencies) {
                 agency.feeds.add(this);
                 agency.save();
             }
             return true;
         }
     }
+    
+    /**
+     * Keep the normalized domain up to date with the agency URL.
+     */
+    @PrePersist
+    @PreUpdate
+    protected void updateAgencyDomain () {
+        agencyDomain = UrlUtils.normalizeDomain(agencyUrl);
+    }
 }
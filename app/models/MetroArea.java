@@ -22,8 +22,13 @@ import java.math.BigInteger;
 import play.Play;
 import play.db.jpa.*;
 import play.data.validation.*;
+import utils.AgencyListCache;
 import utils.GeometryUtils;
+import utils.MetroAreaIndex;
+import utils.MetroLayerCache;
+import utils.TileCache;
 
+import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.GeometryCollection;
@@ -37,6 +42,8 @@ import deployment.DeploymentPlan;
 import org.hibernate.annotations.Type;
 
 @Entity
+@EntityListeners({AgencyListCache.Invalidator.class, MetroLayerCache.Invalidator.class,
+    TileCache.Invalidator.class, MetroAreaIndex.Invalidator.class})
 public class MetroArea extends Model {
 
     /** 
@@ -285,25 +292,51 @@ public class MetroArea extends Model {
     }
 
     /**
-     * Find the metro area that contains the point given (in WGS84 coordinates). If more than one
-     * metro meets this criterion, one of them will be returned (no guarantee as to which one).
+     * Find the enabled metro area that contains the point given (in WGS84 coordinates), using the
+     * in-memory MetroAreaIndex. If more than one metro meets this criterion, the one with the
+     * lowest ID is returned.
      * @param lat
      * @param lon
      * @return
      */
     public static MetroArea findByGeom(double lat, double lon) {
+        Long id = MetroAreaIndex.find(lat, lon);
+        return id != null ? MetroArea.<MetroArea>findById(id) : null;
+    }
+
+    /**
+     * Find the enabled metro areas that contain each of the points given (x is longitude, y
+     * latitude).
+     * @return the metro for each point, or null where a point is not in a metro area.
+     */
+    public static MetroArea[] findByGeom(Coordinate[] points) {
+        Long[] ids = MetroAreaIndex.find(points);
+        MetroArea[] ret = new MetroArea[ids.length];
+
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] != null)
+                ret[i] = MetroArea.findById(ids[i]);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Find the IDs of all of the enabled metro areas that contain the point given, with a
+     * database query rather than the MetroAreaIndex.
+     */
+    public static Set<Long> findIdsByGeomInDatabase(double lat, double lon) {
         Query q = JPA.em().createNativeQuery("SELECT m.id FROM MetroArea m WHERE ST_Within(ST_SetSRID(ST_Point(?, ?), 4326), m.the_geom) " +
-        		"LIMIT 1");
+                "AND m.disabled = false");
         q.setParameter(1, lon);
         q.setParameter(2, lat);
-        long id;
-        try {
-            id = ((BigInteger) q.getSingleResult()).longValue();
-        } catch (NoResultException e) {
-            return null;
+
+        Set<Long> ret = new HashSet<Long>();
+        for (Object id : q.getResultList()) {
+            ret.add(((BigInteger) id).longValue());
         }
-        
-        return MetroArea.findById(id);
+
+        return ret;
     }
 
     public static List<MetroArea> getAllMetrosWithTransit() {
@@ -352,11 +385,21 @@ public class MetroArea extends Model {
     }
 
     /**
-     * Generate and send a deployment plan for this metro to the deployer.
+     * Generate and send a deployment plan for this metro to the deployer, unless it is the same
+     * as the last plan sent.
      * @return the deployment plan, or null if there is no deployment plan.
      */
     // pass the illegal state exception up the tree
     public DeploymentPlan rebuild() throws IllegalStateException {
+        return rebuild(false);
+    }
+    
+    /**
+     * Generate and send a deployment plan for this metro to the deployer.
+     * @param force send the plan even if it is the same as the last plan sent.
+     * @return the deployment plan, or null if there is no deployment plan.
+     */
+    public DeploymentPlan rebuild(boolean force) throws IllegalStateException {
         if (!this.disabled) {
             if (Boolean.parseBoolean(
                     Play.configuration.getProperty("dashboard.send_requests_automatically"))) {
@@ -364,7 +407,8 @@ public class MetroArea extends Model {
                 DeploymentPlan plan = new DeploymentPlan(this);
 
                 // and dispatch the JSON
-                plan.sendTo(Play.configuration.getProperty("dashboard.send_deployer_requests_to"));
+                plan.sendTo(Play.configuration.getProperty("dashboard.send_deployer_requests_to"),
+                        force);
                 return plan;
             }
         }
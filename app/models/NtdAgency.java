@@ -17,12 +17,15 @@ package models;
 
 import javax.persistence.*;
 
+import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
-import com.vividsolutions.jts.operation.overlay.OverlayOp;
+import com.vividsolutions.jts.geom.MultiPolygon;
 
-import java.math.BigInteger;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -31,8 +34,16 @@ import java.util.TreeSet;
 import play.db.jpa.*;
 import play.data.validation.*;
 import utils.GeometryUtils;
+import utils.AgencyListCache;
+import utils.HashUtils;
+import utils.SpatialQueries;
+import utils.UrlUtils;
+
+import org.hibernate.annotations.Index;
+import org.hibernate.annotations.Type;
 
 @Entity
+@EntityListeners(AgencyListCache.Invalidator.class)
 public class NtdAgency extends Model {
     
     /** Human-readable agency name */
@@ -44,6 +55,10 @@ public class NtdAgency extends Model {
     @URL
     public String url;
 
+    /** The normalized domain of url, which feeds are matched to agencies on; set when saved */
+    @Index(name = "ntdagency_domain_idx")
+    public String domain;
+
     /** 
      * This agency's ID in the National Transit Database. Stored as string to preserve
      * leading zeros.
@@ -103,6 +118,16 @@ public class NtdAgency extends Model {
     @ManyToMany(cascade=CascadeType.PERSIST)
     public Set<GtfsFeed> feeds;
 
+    /**
+     * The union of the geometries of the feeds, stored by updateFeedsGeom so that it is only
+     * recomputed when the feeds or their geometries change.
+     */
+    @Type(type = "org.hibernatespatial.GeometryUserType")
+    public MultiPolygon feedsGeom;
+
+    /** The fingerprint of the feeds feedsGeom was computed from; see getFeedsGeomKey */
+    public String feedsGeomKey;
+
     /**
      * Is this agency disabled?
      */
@@ -119,6 +144,15 @@ public class NtdAgency extends Model {
             return url;
     }
 
+    /**
+     * Keep the normalized domain up to date with the URL.
+     */
+    @PrePersist
+    @PreUpdate
+    protected void updateDomain () {
+        domain = UrlUtils.normalizeDomain(url);
+    }
+
     // TODO: argumented constructors
     public NtdAgency () {
         this(null, null, null, 0, null, 0, 0);
@@ -182,47 +216,122 @@ public class NtdAgency extends Model {
         
     }
 
+    /**
+     * Get the union of the geometries of this agency's successfully-parsed feeds, or null if
+     * there are none. This uses the stored union if the feeds have not changed since
+     * updateFeedsGeom, and otherwise computes it without storing it.
+     */
     public Geometry getGeom() {
-        Geometry out = null;
-        Integer srid = null;
+        List<GtfsFeed> parsed = getParsedFeeds();
         
-        for (GtfsFeed feed : feeds) {
-            // ignore feeds that did not parse as they will have null geoms
-            if (feed.status != FeedParseStatus.SUCCESSFUL)
-                continue;
-            
-            if (srid == null)
-                srid = feed.the_geom.getSRID();
+        if (feedsGeom != null && getFeedsGeomKey(parsed).equals(feedsGeomKey))
+            return feedsGeom;
+        
+        return union(parsed);
+    }
+    
+    /**
+     * Recompute and store the union of the geometries of this agency's feeds, if they have
+     * changed. Call this after changing the feeds of this agency or their geometries.
+     * @return the union, as from getGeom
+     */
+    public Geometry updateFeedsGeom() {
+        List<GtfsFeed> parsed = getParsedFeeds();
+        String key = getFeedsGeomKey(parsed);
+        
+        if (feedsGeom != null && key.equals(feedsGeomKey))
+            return feedsGeom;
+        
+        Geometry out = union(parsed);
+        
+        if (out == null)
+            return null;
+        
+        // don't share a geometry with a feed
+        MultiPolygon union = GeometryUtils.forceToMultiPolygon((Geometry) out.clone());
+        
+        if (union != null) {
+            union.setSRID(out.getSRID());
+            feedsGeom = union;
+            feedsGeomKey = key;
             
-            if (out == null)
-                out = feed.the_geom;
-            else
-                out = OverlayOp.overlayOp(out, feed.the_geom, OverlayOp.UNION);
+            if (isPersistent())
+                save();
         }
         
-        // re-set SRID, it gets lost
-        if (out != null)
-            out.setSRID(srid);
-        
         return out;
     }
+    
+    /**
+     * Get the feeds that parsed; the others will have null geoms.
+     */
+    private List<GtfsFeed> getParsedFeeds () {
+        List<GtfsFeed> parsed = new ArrayList<GtfsFeed>();
+        
+        for (GtfsFeed feed : feeds) {
+            if (feed.status == FeedParseStatus.SUCCESSFUL && feed.the_geom != null)
+                parsed.add(feed);
+        }
+        
+        return parsed;
+    }
+    
+    private static Geometry union (List<GtfsFeed> feeds) {
+        List<Geometry> geoms = new ArrayList<Geometry>();
+        for (GtfsFeed feed : feeds) {
+            geoms.add(feed.the_geom);
+        }
+        
+        return GeometryUtils.cascadedUnion(geoms);
+    }
+    
+    /**
+     * Get a fingerprint of the IDs and coordinates of the given feeds, which changes when the
+     * feeds of this agency or their geometries change.
+     */
+    private static String getFeedsGeomKey (List<GtfsFeed> feeds) {
+        List<GtfsFeed> sorted = new ArrayList<GtfsFeed>(feeds);
+        Collections.sort(sorted, new Comparator<GtfsFeed> () {
+            public int compare (GtfsFeed a, GtfsFeed b) {
+                // new feeds have no IDs yet
+                long aId = a.id != null ? a.id : -1;
+                long bId = b.id != null ? b.id : -1;
+                return aId < bId ? -1 : aId == bId ? 0 : 1;
+            }
+        });
+        
+        MessageDigest digest = HashUtils.newSha256();
+        
+        for (GtfsFeed feed : sorted) {
+            update(digest, feed.id != null ? feed.id : -1);
+            update(digest, feed.the_geom.getSRID());
+            
+            for (Coordinate coord : feed.the_geom.getCoordinates()) {
+                update(digest, Double.doubleToLongBits(coord.x));
+                update(digest, Double.doubleToLongBits(coord.y));
+            }
+        }
+        
+        return HashUtils.toHex(digest.digest());
+    }
+    
+    private static void update (MessageDigest digest, long value) {
+        for (int i = 0; i < 8; i++) {
+            digest.update((byte) (value >>> (8 * i)));
+        }
+    }
 
     /**
      * Make this agency a member of every metro it overlaps, without merging anything.
      */
     public void splitToAreas() {
-        Geometry agencyGeom = this.getGeom();
-
-        String query = "SELECT m.id FROM MetroArea m WHERE " + 
-                "ST_DWithin(m.the_geom, transform(ST_GeomFromText(?, ?), ST_SRID(m.the_geom)), 0.04)";;
-        Query ids = JPA.em().createNativeQuery(query);
-        ids.setParameter(1, agencyGeom.toText());
-        ids.setParameter(2, agencyGeom.getSRID());
-        List<BigInteger> metrosTemp = ids.getResultList();
+        Geometry agencyGeom = this.updateFeedsGeom();
+
+        List<Long> metrosTemp = SpatialQueries.findMetroIdsNear(agencyGeom, null);
         
         MetroArea metro;
-        for (BigInteger metroId : metrosTemp) {
-            metro = MetroArea.findById(metroId.longValue());
+        for (Long metroId : metrosTemp) {
+            metro = MetroArea.findById(metroId);
             metro.agencies.add(this);
             metro.save();
         }
@@ -234,21 +343,16 @@ public class NtdAgency extends Model {
      * far away in other metros; since geoms are convex-hulled, they will cross lots of areas.
      */
     public void mergeAllAreas() {
-        Geometry agencyGeom = this.getGeom();
-
-        String query = "SELECT m.id FROM MetroArea m WHERE " + 
-                "ST_DWithin(m.the_geom, transform(ST_GeomFromText(?, ?), ST_SRID(m.the_geom)), 0.04)";;
-        Query ids = JPA.em().createNativeQuery(query);
-        ids.setParameter(1, agencyGeom.toText());
-        ids.setParameter(2, agencyGeom.getSRID());
-        List<BigInteger> metrosTemp = ids.getResultList();
+        Geometry agencyGeom = this.updateFeedsGeom();
+
+        List<Long> metrosTemp = SpatialQueries.findMetroIdsNear(agencyGeom, null);
         
         MetroArea metro;
-        MetroArea first = MetroArea.findById(metrosTemp.get(0).longValue());
+        MetroArea first = MetroArea.findById(metrosTemp.get(0));
         metrosTemp.remove(0);
         
-        for (BigInteger metroId : metrosTemp) {
-            metro = MetroArea.findById(metroId.longValue());
+        for (Long metroId : metrosTemp) {
+            metro = MetroArea.findById(metroId);
             first.mergeAreas(metro);
             metro.delete();
         }
@@ -277,10 +381,7 @@ public class NtdAgency extends Model {
         Set<MetroArea> changedMetros = new HashSet<MetroArea>();
         
         // find metro area(s)
-        String query = "SELECT m.id FROM MetroArea m WHERE m.disabled <> false AND " + 
-                "ST_DWithin(m.the_geom, transform(ST_GeomFromText(?, ?), ST_SRID(m.the_geom)), 0.04)";
-        Query ids = JPA.em().createNativeQuery(query);
-        Geometry geom = this.getGeom();
+        Geometry geom = this.updateFeedsGeom();
         
         if (geom == null) {
             if (this.getMetroAreas().size() == 0)
@@ -290,14 +391,12 @@ public class NtdAgency extends Model {
             return changedMetros;
         }
         
-        ids.setParameter(1, geom.toText());
-        ids.setParameter(2, geom.getSRID());
-        List<BigInteger> metroIds = ids.getResultList();            
+        List<Long> metroIds = SpatialQueries.findMetroIdsNear(geom, "m.disabled <> false");
         List<MetroArea> metros = new ArrayList<MetroArea>();
         MetroArea metro;
 
-        for (BigInteger id : metroIds) {
-            metros.add(MetroArea.<MetroArea>findById(id.longValue()));
+        for (Long id : metroIds) {
+            metros.add(MetroArea.<MetroArea>findById(id));
         }
 
         // easy case
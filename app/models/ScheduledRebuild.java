@@ -6,6 +6,8 @@ import javax.persistence.Entity;
 import javax.persistence.ManyToOne;
 import javax.persistence.OneToOne;
 
+import org.hibernate.annotations.Index;
+
 import play.db.jpa.Model;
 
 /**
@@ -21,6 +23,7 @@ public class ScheduledRebuild extends Model {
     public MetroArea metroArea;
     
     /** When to rebuild it */
+    @Index(name = "scheduledrebuild_rebuildafter_idx")
     public Date rebuildAfter;
     
     public ScheduledRebuild(MetroArea metroArea, Date rebuildAfter) {
@@ -0,0 +1,69 @@
+/*
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package models;
+
+import java.util.Date;
+
+import javax.persistence.Entity;
+import javax.persistence.Lob;
+
+import org.hibernate.annotations.Index;
+
+import play.db.jpa.Model;
+
+/**
+ * The last deployment plan sent to Deployer for a metro area, so that an unchanged plan need not
+ * be sent again. The metro is referenced by ID so that metros can be merged and deleted freely.
+ *
+ * @author mattwigway
+ */
+@Entity
+public class SentDeploymentPlan extends Model {
+    @Index(name = "sentdeploymentplan_metroareaid_idx")
+    public Long metroAreaId;
+
+    /** The SHA-256 of the plan JSON */
+    public String fingerprint;
+
+    /** The plan JSON, exactly as it was sent */
+    @Lob
+    public String json;
+
+    public Date sent;
+
+    public SentDeploymentPlan (Long metroAreaId) {
+        this.metroAreaId = metroAreaId;
+    }
+
+    public static SentDeploymentPlan findByMetroAreaId (Long metroAreaId) {
+        return SentDeploymentPlan.find("metroAreaId = ?", metroAreaId).first();
+    }
+
+    /**
+     * Record that the given plan was sent for the given metro, replacing the plan sent before.
+     */
+    public static void record (Long metroAreaId, String fingerprint, String json) {
+        SentDeploymentPlan plan = findByMetroAreaId(metroAreaId);
+
+        if (plan == null)
+            plan = new SentDeploymentPlan(metroAreaId);
+
+        plan.fingerprint = fingerprint;
+        plan.json = json;
+        plan.sent = new Date();
+        plan.save();
+    }
+}
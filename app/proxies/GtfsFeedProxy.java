@@ -16,9 +16,10 @@
 package proxies;
 
 import models.GtfsFeed;
+import java.text.SimpleDateFormat;
 import java.util.Date;
 
-public class GtfsFeedProxy {
+public class GtfsFeedProxy implements Proxy {
     public long id;
     public String agencyName;
     public String agencyUrl;
@@ -26,6 +27,40 @@ public class GtfsFeedProxy {
     public boolean official;
     public Date expires; 
     public String status;
+    /** The ID of the feed that superseded this one, or null */
+    public Long supersededBy;
+    
+    /**
+     * Create a header row for a csv file
+     */
+    public String[] toHeader () {
+        String[] retval = {"ID", "Agency Name", "Agency URL", "Feed URL", "Official",
+                           "Expires", "Status", "Superseded By"};
+        return retval;
+    }
+    
+    /**
+     * Create a row for the CSV file from this proxy
+     */
+    public String[] toRow () {
+        SimpleDateFormat isoDate = new SimpleDateFormat("yyyy-MM-dd");
+        String[] retval = {"" + id, agencyName, agencyUrl, feedBaseUrl, (official ? "Yes" : "No"),
+                           (expires != null ? isoDate.format(expires) : null), status,
+                           (supersededBy != null ? "" + supersededBy : null)};
+        return retval;
+    }
+
+    public GtfsFeedProxy (long id, String agencyName, String agencyUrl, String feedBaseUrl,
+                          boolean official, Date expires, String status, Long supersededBy) {
+        this.id = id;
+        this.agencyName = agencyName;
+        this.agencyUrl = agencyUrl;
+        this.feedBaseUrl = feedBaseUrl;
+        this.official = official;
+        this.expires = expires;
+        this.status = status;
+        this.supersededBy = supersededBy;
+    }
 
     public GtfsFeedProxy (GtfsFeed feed) {
         this.id = feed.id;
@@ -34,6 +69,7 @@ public class GtfsFeedProxy {
         this.feedBaseUrl = feed.feedBaseUrl;
         this.expires = feed.expirationDate;
         this.official = feed.official;
-        this.status = feed.status.toString();
+        this.status = feed.status != null ? feed.status.toString() : null;
+        this.supersededBy = feed.supersededBy != null ? feed.supersededBy.id : null;
     }
 }
\ No newline at end of file
@@ -24,8 +24,6 @@ import com.google.gson.JsonObject;
 
 import play.Logger;
 import play.db.jpa.JPA;
-import play.libs.WS;
-import play.libs.WS.HttpResponse;
 
 import models.BikeRentalSystem;
 import models.BikeRentalSystemType;
@@ -38,14 +36,18 @@ public class CityBikesUpdater implements Updater {
     public Set<MetroArea> update(FeedStorer storer) {
         Set<MetroArea> updated = new HashSet<MetroArea>();
 
-        HttpResponse res = WS.url("http://api.citybik.es/networks.json").get();
-        int status = res.getStatus();
-        if (status != 200) {
-            Logger.error("Status %s retrieving data from CityBik.es API", status);
+        ConditionalFetcher.Fetch fetch = ConditionalFetcher.get("http://api.citybik.es/networks.json");
+        if (!fetch.success()) {
+            Logger.error("Status %s retrieving data from CityBik.es API", fetch.response.getStatus());
             return null;
         }
 
-        JsonArray json = res.getJson().getAsJsonArray();
+        if (fetch.notModified()) {
+            Logger.info("CityBik.es networks not modified");
+            return updated;
+        }
+
+        JsonArray json = fetch.response.getJson().getAsJsonArray();
 
         for (JsonElement rawSystem : json) {
             boolean isNew = false;
@@ -85,6 +87,11 @@ public class CityBikesUpdater implements Updater {
             system.save();
         }
 
+        fetch.processed();
         return updated;
     }
+    
+    public String toString () {
+        return "CityBikesUpdater";
+    }
 }
@@ -0,0 +1,153 @@
+/*
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package updaters;
+
+import java.util.Date;
+
+import models.FetchedUrl;
+import play.libs.WS;
+import play.libs.WS.HttpResponse;
+import play.libs.WS.WSRequest;
+
+/**
+ * Make HTTP requests conditional on the validators (ETag and Last-Modified) the server sent the
+ * last time the content of the URL was processed. The validators are only saved when the caller
+ * says it has processed the response, so content that failed to process is fetched again next time.
+ * Must be used in a JPA transaction.
+ *
+ * @author mattwigway
+ */
+public class ConditionalFetcher {
+    public static Fetch get (String url) {
+        return fetch(url, false);
+    }
+
+    /**
+     * Make a conditional HEAD request, e.g. to check a large file before downloading it.
+     */
+    public static Fetch head (String url) {
+        return fetch(url, true);
+    }
+
+    private static Fetch fetch (String url, boolean head) {
+        FetchedUrl previous = FetchedUrl.findByUrl(url);
+        WSRequest req = WS.url(url);
+
+        if (previous != null) {
+            if (previous.etag != null)
+                req.setHeader("If-None-Match", previous.etag);
+            if (previous.lastModified != null)
+                req.setHeader("If-Modified-Since", previous.lastModified);
+        }
+
+        HttpResponse res = head ? req.head() : req.get();
+        return new Fetch(url, previous, res);
+    }
+
+    /**
+     * The response to a conditional request.
+     */
+    public static class Fetch {
+        public HttpResponse response;
+
+        private String url;
+        private FetchedUrl previous;
+        private String etag;
+        private String lastModified;
+        private Long contentLength;
+
+        private Fetch (String url, FetchedUrl previous, HttpResponse response) {
+            this.url = url;
+            this.previous = previous;
+            this.response = response;
+            this.etag = response.getHeader("ETag");
+            this.lastModified = response.getHeader("Last-Modified");
+
+            String length = response.getHeader("Content-Length");
+            try {
+                this.contentLength = length != null ? Long.valueOf(length.trim()) : null;
+            } catch (NumberFormatException e) {
+                this.contentLength = null;
+            }
+        }
+
+        /**
+         * Was the request successful, including a 304?
+         */
+        public boolean success () {
+            return response.getStatus() == 304 || response.success();
+        }
+
+        /**
+         * Is the content the same as when it was last processed? This is true for a 304, and also
+         * for a full response whose validators match the saved ones, since not all servers
+         * honor conditional requests (especially HEAD requests).
+         */
+        public boolean notModified () {
+            if (response.getStatus() == 304)
+                return true;
+
+            if (previous == null || !response.success())
+                return false;
+
+            if (contentLength != null && previous.contentLength != null &&
+                    !contentLength.equals(previous.contentLength))
+                return false;
+
+            if (etag != null && previous.etag != null)
+                return etag.equals(previous.etag);
+
+            if (lastModified != null && previous.lastModified != null)
+                return lastModified.equals(previous.lastModified);
+
+            return false;
+        }
+
+        /**
+         * Has the content of this URL been processed before?
+         */
+        public boolean hasPrevious () {
+            return previous != null;
+        }
+
+        /**
+         * Did the server send anything that can be used to make the next request conditional?
+         */
+        public boolean hasValidators () {
+            return etag != null || lastModified != null;
+        }
+
+        public String getLastModified () {
+            return lastModified;
+        }
+
+        /**
+         * Save the validators from this response, once its content has been processed
+         * successfully.
+         */
+        public void processed () {
+            if (response.getStatus() == 304 || !response.success())
+                return;
+
+            FetchedUrl fetched = previous != null ? previous : new FetchedUrl(url);
+            fetched.etag = etag;
+            fetched.lastModified = lastModified;
+            fetched.contentLength = contentLength;
+            fetched.lastChanged = new Date();
+            fetched.save();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package updaters;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.UUID;
+
+import models.GtfsFeed;
+import play.Logger;
+import utils.HashUtils;
+
+/**
+ * Stores feeds on disk under the hex SHA-256 of their contents, so a feed that is downloaded many
+ * times is only stored once; the stored ID is the digest. A stored feed is referenced by every
+ * GtfsFeed with that stored ID, and deleteFeed will not delete a feed that still has references,
+ * so removeUnreferencedStoredFeeds in the admin interface acts as the garbage collector.
+ *
+ * Feeds stored by FileFeedStorer in the same directory, under UUIDs, can still be read and deleted.
+ *
+ * @author mattwigway
+ */
+public class ContentAddressedFeedStorer extends FileFeedStorer {
+    @Override
+    public String storeFeed(String url) {
+        Logger.info("Downloading feed %s", url);
+
+        // download to a temporary file first, since the name is not known until it is complete
+        File temp = new File(getPath(), "download-" + UUID.randomUUID().toString());
+        MessageDigest digest = HashUtils.newSha256();
+        InputStream in = null;
+        OutputStream out = null;
+
+        try {
+            in = new DigestInputStream(new URL(url).openStream(), digest);
+            out = new FileOutputStream(temp);
+
+            byte[] buf = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buf)) != -1) {
+                out.write(buf, 0, read);
+            }
+        } catch (IOException e) {
+            Logger.error("IO exception retrieving %s", url);
+            e.printStackTrace();
+            temp.delete();
+            return null;
+        } finally {
+            try {
+                if (in != null)
+                    in.close();
+                if (out != null)
+                    out.close();
+            } catch (IOException e) {
+                Logger.error("Cannot close file, leaving unclosed");
+            }
+        }
+
+        String id = HashUtils.toHex(digest.digest());
+        File stored = new File(getPath(), id);
+
+        if (stored.exists()) {
+            Logger.info("Feed %s is already stored as %s", url, id);
+            temp.delete();
+        }
+        // same directory, so this is a rename and not a copy
+        else if (!temp.renameTo(stored)) {
+            Logger.error("Cannot move %s to %s", temp, stored);
+            temp.delete();
+            return null;
+        }
+
+        Logger.info("saved with id %s", id);
+        return id;
+    }
+
+    /**
+     * Get the number of feeds in the database that reference the given stored feed. Must be called
+     * in a JPA transaction.
+     */
+    public long getReferenceCount (String id) {
+        return GtfsFeed.count("storedId = ?", id);
+    }
+
+    /**
+     * Delete a stored feed, unless a feed in the database still references it.
+     */
+    @Override
+    public void deleteFeed(String id) {
+        long references = getReferenceCount(id);
+        if (references > 0) {
+            Logger.warn("Not deleting stored feed %s, it is referenced by %s feeds", id, references);
+            return;
+        }
+
+        super.deleteFeed(id);
+    }
+
+    public String toString() {
+        return "ContentAddressedFeedStorer with path " + getPath();
+    }
+}
@@ -0,0 +1,262 @@
+/*
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package updaters;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import play.Logger;
+
+/**
+ * A size-bounded cache of stored feeds on local disk, for feed storers whose storage is remote.
+ * Stored feeds never change once stored, so a cached copy is never stale.
+ *
+ * Callers pin a feed while they are using it and unpin it when they are done; a pinned feed is
+ * never evicted, even if that means the cache is temporarily over its budget. Unpinned feeds are
+ * evicted least recently used first. Concurrent requests for a feed that is not cached wait for a
+ * single download.
+ *
+ * Feeds are kept in a subdirectory of their own, so nothing else in the directory the cache is
+ * given is ever touched, and are kept across restarts. A feed is downloaded to a .partial file
+ * and renamed when it is complete, so partial downloads are never mistaken for feeds.
+ *
+ * @author mattwigway
+ */
+public class FeedFileCache {
+    private static final String PARTIAL = ".partial";
+
+    /**
+     * Downloads a stored feed into the cache.
+     */
+    public static interface Loader {
+        public void load (String feedId, File target) throws Exception;
+    }
+
+    private File directory;
+    private long maxBytes;
+
+    /** In access order, so iteration goes from least to most recently used */
+    private LinkedHashMap<String, Entry> entries;
+
+    private long cachedBytes;
+    private long hits;
+    private long misses;
+    private long bytesSaved;
+
+    /**
+     * Create a cache in the feeds subdirectory of the given directory. Feeds cached before a
+     * restart are used again, least recently used first; partial downloads are deleted.
+     */
+    public FeedFileCache (File directory, long maxBytes) {
+        this.directory = new File(directory, "feeds");
+        this.maxBytes = maxBytes;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        this.cachedBytes = 0;
+        this.hits = 0;
+        this.misses = 0;
+        this.bytesSaved = 0;
+
+        this.directory.mkdirs();
+        load();
+    }
+
+    /**
+     * Add the feeds already in the directory, oldest first.
+     */
+    private synchronized void load () {
+        File[] existing = this.directory.listFiles();
+        if (existing == null)
+            return;
+
+        Arrays.sort(existing, new Comparator<File>() {
+            public int compare (File a, File b) {
+                return a.lastModified() < b.lastModified() ? -1 :
+                    a.lastModified() > b.lastModified() ? 1 : 0;
+            }
+        });
+
+        for (File file : existing) {
+            if (file.getName().endsWith(PARTIAL)) {
+                file.delete();
+                continue;
+            }
+
+            if (!file.isFile())
+                continue;
+
+            Entry entry = new Entry(file);
+            entry.bytes = file.length();
+            entry.ready = true;
+            entries.put(file.getName(), entry);
+            cachedBytes += entry.bytes;
+        }
+
+        evict();
+        Logger.info("Feed cache has %s feeds from before startup, %s bytes", entries.size(),
+                cachedBytes);
+    }
+
+    /**
+     * Get a feed, downloading it with the loader if it is not cached, and pin it until
+     * unpin is called.
+     */
+    public File pin (String feedId, Loader loader) throws Exception {
+        Entry entry;
+
+        synchronized (this) {
+            while (true) {
+                entry = entries.get(feedId);
+
+                if (entry == null)
+                    break;
+
+                if (entry.ready) {
+                    entry.pins++;
+                    hits++;
+                    bytesSaved += entry.bytes;
+                    // so the order is about right after a restart
+                    entry.file.setLastModified(System.currentTimeMillis());
+                    return entry.file;
+                }
+
+                // another thread is downloading it
+                wait();
+            }
+
+            entry = new Entry(new File(directory, feedId));
+            entry.pins = 1;
+            entries.put(feedId, entry);
+            misses++;
+        }
+
+        File partial = new File(directory, feedId + PARTIAL);
+
+        try {
+            loader.load(feedId, partial);
+
+            if (!partial.renameTo(entry.file))
+                throw new IllegalStateException("Could not move downloaded feed " + feedId +
+                        " into the cache");
+        } catch (Exception e) {
+            synchronized (this) {
+                entries.remove(feedId);
+                // waiting threads will try the download themselves
+                notifyAll();
+            }
+            partial.delete();
+            throw e;
+        }
+
+        synchronized (this) {
+            entry.bytes = entry.file.length();
+            entry.ready = true;
+            cachedBytes += entry.bytes;
+            evict();
+            notifyAll();
+        }
+
+        return entry.file;
+    }
+
+    /**
+     * Release a feed pinned with pin.
+     */
+    public synchronized void unpin (String feedId) {
+        Entry entry = entries.get(feedId);
+
+        if (entry == null || entry.pins == 0) {
+            Logger.warn("Feed %s unpinned more times than it was pinned", feedId);
+            return;
+        }
+
+        entry.pins--;
+        evict();
+    }
+
+    /**
+     * Remove a feed from the cache, e.g. because it has been deleted from storage. If it is pinned,
+     * it is removed when it is unpinned.
+     */
+    public synchronized void invalidate (String feedId) {
+        Entry entry = entries.get(feedId);
+
+        if (entry == null)
+            return;
+
+        entry.invalid = true;
+        evict();
+    }
+
+    /**
+     * Get the cache statistics since startup, for display in the admin interface.
+     */
+    public synchronized Map<String, Object> getStatus () {
+        Map<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put("hits", hits);
+        status.put("misses", misses);
+        status.put("hitRate", hits + misses > 0 ? (double) hits / (hits + misses) : 0.0);
+        status.put("bytesSaved", bytesSaved);
+        status.put("entries", entries.size());
+        status.put("cachedBytes", cachedBytes);
+        status.put("maxBytes", maxBytes);
+        return status;
+    }
+
+    /**
+     * Remove invalidated feeds, and unpinned feeds in least recently used order until the cache
+     * is within its budget. Must be called with the lock held.
+     */
+    private void evict () {
+        Iterator<Entry> it = entries.values().iterator();
+
+        while (it.hasNext()) {
+            Entry entry = it.next();
+
+            if (!entry.ready || entry.pins > 0)
+                continue;
+
+            if (entry.invalid || cachedBytes > maxBytes) {
+                it.remove();
+                cachedBytes -= entry.bytes;
+                entry.file.delete();
+            }
+        }
+    }
+
+    private static class Entry {
+        public File file;
+        public long bytes;
+        public int pins;
+
+        /** false while the feed is being downloaded */
+        public boolean ready;
+
+        /** true if the feed should be removed as soon as it is unpinned */
+        public boolean invalid;
+
+        public Entry (File file) {
+            this.file = file;
+            this.bytes = 0;
+            this.pins = 0;
+            this.ready = false;
+            this.invalid = false;
+        }
+    }
+}
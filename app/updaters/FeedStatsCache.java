@@ -0,0 +1,99 @@
+/*
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package updaters;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import models.CachedFeedStats;
+import play.Logger;
+import utils.HashUtils;
+
+/**
+ * Look up feed stats in the stats cache before calculating them. Agencies often republish
+ * byte-identical feeds with a new timestamp; with this, those are hashed but never reparsed.
+ *
+ * @author mattwigway
+ */
+public class FeedStatsCache {
+    private static AtomicLong hits = new AtomicLong(0);
+    private static AtomicLong misses = new AtomicLong(0);
+
+    /** Total time spent calculating stats on cache misses */
+    private static AtomicLong parseMillis = new AtomicLong(0);
+
+    /** Total time spent hashing feeds */
+    private static AtomicLong hashMillis = new AtomicLong(0);
+
+    /**
+     * Get the stats for the given GTFS file, calculating them only if this exact file has not
+     * been seen by this version of the calculator. Must be called in a JPA transaction.
+     * @throws Exception if the stats need to be calculated and the calculation fails.
+     */
+    public static FeedStatsCalculator getStats (File gtfs) throws Exception {
+        long start = System.currentTimeMillis();
+        String sha256 = HashUtils.sha256(gtfs);
+        hashMillis.addAndGet(System.currentTimeMillis() - start);
+
+        CachedFeedStats cached = CachedFeedStats.find("sha256 = ? AND calculatorVersion = ?",
+                sha256, FeedStatsCalculator.VERSION).first();
+
+        if (cached != null) {
+            hits.incrementAndGet();
+            Logger.info("Feed stats cache hit for %s", sha256);
+            return new FeedStatsCalculator(cached);
+        }
+
+        misses.incrementAndGet();
+
+        start = System.currentTimeMillis();
+        FeedStatsCalculator stats = new FeedStatsCalculator(gtfs);
+        parseMillis.addAndGet(System.currentTimeMillis() - start);
+
+        stats.toCachedStats(sha256).save();
+        return stats;
+    }
+
+    public static long getHits () {
+        return hits.get();
+    }
+
+    public static long getMisses () {
+        return misses.get();
+    }
+
+    /**
+     * Get the cache statistics since startup, for display in the admin interface. The time saved
+     * is an estimate, based on the mean time to calculate stats on a miss.
+     */
+    public static Map<String, Object> getStatus () {
+        Map<String, Object> status = new LinkedHashMap<String, Object>();
+        long h = hits.get();
+        long m = misses.get();
+        long parse = parseMillis.get();
+
+        status.put("hits", h);
+        status.put("misses", m);
+        status.put("hitRate", h + m > 0 ? (double) h / (h + m) : 0.0);
+        status.put("hashMillis", hashMillis.get());
+        status.put("parseMillis", parse);
+        status.put("estimatedMillisSaved", m > 0 ? h * parse / m : 0);
+        status.put("entries", CachedFeedStats.count());
+        return status;
+    }
+}
@@ -15,29 +15,16 @@
 
 package updaters;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 import java.util.TimeZone;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipException;
-import java.util.zip.ZipFile;
 
-import org.joda.time.DateTime;
-import org.joda.time.Days;
 import org.onebusaway.gtfs.impl.GtfsDaoImpl;
 import org.onebusaway.gtfs.model.Agency;
-import org.onebusaway.gtfs.model.AgencyAndId;
 import org.onebusaway.gtfs.model.FeedInfo;
 import org.onebusaway.gtfs.model.ServiceCalendar;
 import org.onebusaway.gtfs.model.ServiceCalendarDate;
@@ -45,29 +32,42 @@ import org.onebusaway.gtfs.model.Stop;
 import org.onebusaway.gtfs.model.calendar.ServiceDate;
 import org.onebusaway.gtfs.serialization.GtfsReader;
 
+import models.CachedFeedStats;
 import models.GtfsFeed;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
-import com.vividsolutions.jts.geom.MultiPoint;
 import com.vividsolutions.jts.geom.MultiPolygon;
 import com.vividsolutions.jts.geom.Polygon;
 import com.vividsolutions.jts.algorithm.ConvexHull;
 
-import play.Logger;
+import play.Play;
 import utils.GeometryUtils;
 
-import au.com.bytecode.opencsv.CSVReader;
-
 /**
  * Calculate feed stats for a zipped GTFS.
  * @author mattwigway
  *
  */
 public class FeedStatsCalculator {
+    /**
+     * How the GTFS is read. ONEBUSAWAY loads the whole feed into a GtfsDaoImpl, and so rejects
+     * feeds with broken trips or stop times, but needs a lot of memory for large feeds. STREAMING
+     * reads only the files needed for the stats, never trips.txt or stop_times.txt, so it accepts
+     * some feeds OneBusAway rejects. Both produce the same stats for valid feeds.
+     */
+    public static enum Engine {
+        STREAMING, ONEBUSAWAY;
+    }
+    
+    /**
+     * The version of the stats calculation. Increment this whenever a change (including an
+     * OneBusAway upgrade) could change the stats of a feed, so that cached stats are recalculated.
+     */
+    public static final int VERSION = 2;
+    
 	private File rawGtfs;
-	private GtfsDaoImpl store;
 	private int stops;
 	
 	// These dates are stored in agency local time in this timezone
@@ -75,6 +75,9 @@ public class FeedStatsCalculator {
 	private Date startDate;
 	private Date endDate;
 	private MultiPolygon the_geom;
+	private String agencyName;
+	private String agencyUrl;
+	private ServiceCalendarIndex serviceCalendar;
 	
 	public Date getStartDate() {
 		return startDate;
@@ -88,36 +91,127 @@ public class FeedStatsCalculator {
 	    return the_geom;
 	}
 	
+	/**
+	 * Get the evaluated service calendar, e.g. for the number of services active on each day.
+	 * This is null when the stats came from the stats cache.
+	 */
+	public ServiceCalendarIndex getServiceCalendar () {
+	    return serviceCalendar;
+	}
+	
+	/**
+	 * Calculate stats using the engine set in dashboard.feedstats.engine.
+	 */
 	public FeedStatsCalculator(File gtfs) throws Exception {
+	    this(gtfs, getDefaultEngine());
+	}
+	
+	public FeedStatsCalculator(File gtfs, Engine engine) throws Exception {
 		this.rawGtfs = gtfs;
+		this.startDate = null;
+		this.endDate = null;
+		
+		if (engine == Engine.ONEBUSAWAY)
+		    loadWithDao();
+		else
+		    loadStreaming();
+	}
+	
+	/**
+	 * Restore stats from the stats cache.
+	 */
+	public FeedStatsCalculator(CachedFeedStats cached) {
+	    this.rawGtfs = null;
+	    this.startDate = cached.startDate;
+	    this.endDate = cached.endDate;
+	    this.the_geom = cached.the_geom;
+	    this.stops = cached.stops;
+	    this.timezone = cached.timezone;
+	    this.agencyName = cached.agencyName;
+	    this.agencyUrl = cached.agencyUrl;
+	    this.serviceCalendar = null;
+	}
+	
+	/**
+	 * Make a stats cache entry for these stats.
+	 * @param sha256 the hash of the GTFS file these stats were calculated from
+	 */
+	public CachedFeedStats toCachedStats (String sha256) {
+	    CachedFeedStats cached = new CachedFeedStats();
+	    cached.sha256 = sha256;
+	    cached.calculatorVersion = VERSION;
+	    cached.dateCalculated = new Date();
+	    cached.startDate = this.startDate;
+	    cached.endDate = this.endDate;
+	    cached.the_geom = this.the_geom;
+	    cached.stops = this.stops;
+	    cached.timezone = this.timezone;
+	    cached.agencyName = this.agencyName;
+	    cached.agencyUrl = this.agencyUrl;
+	    return cached;
+	}
+	
+	/**
+	 * Get the engine configured in application.conf; defaults to onebusaway.
+	 */
+	public static Engine getDefaultEngine () {
+	    String engine = Play.configuration.getProperty("dashboard.feedstats.engine", "onebusaway");
+	    return Engine.valueOf(engine.trim().toUpperCase());
+	}
+	
+	/**
+	 * Load the entire feed with OneBusAway and calculate the stats from it.
+	 */
+	private void loadWithDao () throws Exception {
 	    GtfsReader reader = new GtfsReader();
 	    reader.setInputLocation(rawGtfs);
 	        
-	    this.store = new GtfsDaoImpl();
-	    reader.setEntityStore(this.store);
+	    GtfsDaoImpl store = new GtfsDaoImpl();
+	    reader.setEntityStore(store);
 	    reader.run();
 	    reader.close();
 	    
-		this.startDate = null;
-		this.endDate = null;
-		
-		findTimeZone();
-		calculateStartAndEnd();
-		calculateGeometry();
-		calculateNumStops();
+	    findAgency(store.getAllAgencies());
+	    // TODO is 1 ever not the correct value?
+	    calculateStartAndEnd(store.getFeedInfoForId(1), store.getAllCalendars(),
+	            store.getAllCalendarDates());
+	    
+	    List<Coordinate> stopsGeom = new ArrayList<Coordinate>();
+	    for (Stop stop : store.getAllStops()) {
+	        if (isNearNullIsland(stop.getLon(), stop.getLat()))
+	            continue;
+	        
+	        stopsGeom.add(new Coordinate(stop.getLon(), stop.getLat()));
+	    }
+	    calculateGeometry(stopsGeom);
+	    
+	    stops = store.getAllStops().size();
+	}
+	
+	/**
+	 * Read only the files needed for the stats, without building a GtfsDaoImpl.
+	 */
+	private void loadStreaming () throws Exception {
+	    GtfsStatsReader reader = new GtfsStatsReader(rawGtfs);
+	    reader.run();
+	    
+	    findAgency(reader.getAgencies());
+	    calculateStartAndEnd(reader.getFeedInfo(), reader.getCalendars(),
+	            reader.getCalendarDates());
+	    calculateGeometry(reader.getStopCoordinates());
+	    
+	    stops = reader.getStopCount();
 	}
 	
-	private void findTimeZone () {
-        for (Agency agency : store.getAllAgencies()) {
+	private void findAgency (Collection<Agency> agencies) {
+        for (Agency agency : agencies) {
             // TODO: Multiple agencies with different time zones
             this.timezone = TimeZone.getTimeZone(agency.getTimezone());
+            this.agencyName = agency.getName();
+            this.agencyUrl = agency.getUrl();
             break;
         }
 	}
-	
-	private void calculateNumStops() {
-	    stops = store.getAllStops().size();
-    }
 
     /**
 	 * Apply the calculated feed stats to the appropriate fields of the given GtfsFeed
@@ -130,31 +224,17 @@ public class FeedStatsCalculator {
 		feed.timezone = this.timezone;
 	}
 	
-	/**
-	 * Apply not just the feed stats, but also the 
-	 */
-	
-	private void calculateStartAndEnd () throws Exception {
+	private void calculateStartAndEnd (FeedInfo feedInfo, Collection<ServiceCalendar> calendars,
+	        Collection<ServiceCalendarDate> calendarDates) throws Exception {
+	    serviceCalendar = new ServiceCalendarIndex(calendars, calendarDates);
+	    
 	    // First, read feed_info.txt
-	    // TODO is 1 ever not the correct value?
-	    FeedInfo feedInfo = store.getFeedInfoForId(1);
 	    if (feedInfo != null) {
-	        ServiceDate d;
-	        d = feedInfo.getStartDate();
-	        if (d != null) {
-	            Calendar c = d.getAsCalendar(timezone);
-	            // move to GTFS noon, which will always be during the day. This accounts for both
-	            // multitimezone feeds and for daylight savings time 
-	            c.add(Calendar.HOUR_OF_DAY, 12);
-	            startDate = c.getTime();
-	        }
+	        if (feedInfo.getStartDate() != null)
+	            startDate = toGtfsNoon(feedInfo.getStartDate());
 	        
-	        d = feedInfo.getEndDate();
-	        if (d != null) {
-	            Calendar c = d.getAsCalendar(timezone);
-	            c.add(Calendar.HOUR_OF_DAY, 12);
-	            endDate = c.getTime();
-	        }
+	        if (feedInfo.getEndDate() != null)
+	            endDate = toGtfsNoon(feedInfo.getEndDate());
 	    }
 	    
 		
@@ -162,134 +242,34 @@ public class FeedStatsCalculator {
 		if (startDate != null && endDate != null)
 		    return;
 	
-        // let OBA deal with the complexities of interactions between
-        // calendar.txt and
-        // calendar_dates.txt
-        // This code is lifted and slightly modified from
-        // https://github.com/demory/otp_gtfs/blob/master/java/gtfsmetrics/src/main/java/org/openplans/gtfsmetrics/CalendarStatus.java
-        Map<AgencyAndId, Set<ServiceDate>> addExceptions = new HashMap<AgencyAndId, Set<ServiceDate>>();
-        Map<AgencyAndId, Set<String>> removeExceptions = new HashMap<AgencyAndId, Set<String>>();
-        for (ServiceCalendarDate date : store.getAllCalendarDates()) {
-            if (date.getExceptionType() == ServiceCalendarDate.EXCEPTION_TYPE_ADD) {
-                Set<ServiceDate> dateSet = addExceptions.get(date
-                        .getServiceId());
-                if (dateSet == null) {
-                    dateSet = new HashSet<ServiceDate>();
-                    addExceptions.put(date.getServiceId(), dateSet);
-                }
-                dateSet.add(date.getDate());
-            } else if (date.getExceptionType() == ServiceCalendarDate.EXCEPTION_TYPE_REMOVE) {
-                Set<String> dateSet = removeExceptions.get(date.getServiceId());
-                if (dateSet == null) {
-                    dateSet = new HashSet<String>();
-                    removeExceptions.put(date.getServiceId(), dateSet);
-                }
-                dateSet.add(constructMDYString(date.getDate()));
-            }
-        }
-
-        DateTime latestEnd = new DateTime(0);
-        DateTime earliestStart = null;
-
-        for (ServiceCalendar svcCal : store.getAllCalendars()) {
-
-            Calendar c;
-            c = svcCal.getStartDate().getAsCalendar(timezone);
-            c.add(Calendar.HOUR_OF_DAY, 12);
-            DateTime start = new DateTime(c.getTime());
-
-            c = svcCal.getEndDate().getAsCalendar(timezone);
-            c.add(Calendar.HOUR_OF_DAY, 12);
-            DateTime end = new DateTime(c.getTime());
-
-            int totalDays = Days.daysBetween(start, end).getDays();
-            for (int d = 0; d < totalDays; d++) {
-                int gd = getDay(svcCal, end.dayOfWeek().get());// dateCal.get(Calendar.DAY_OF_WEEK));
-                boolean removeException = false;
-                Set<String> dateSet = removeExceptions.get(svcCal
-                        .getServiceId());
-                if (dateSet != null) {
-                    removeException = dateSet.contains(constructMDYString(end));
-                }
-                if (gd == 1 && !removeException)
-                    break;
-                end = end.minusDays(1);
-            }
-            if (end.isAfter(latestEnd))
-                latestEnd = end;
-
-            totalDays = Days.daysBetween(start, end).getDays();
-            for (int d = 0; d < totalDays; d++) {
-                int gd = getDay(svcCal, start.dayOfWeek().get());// dateCal.get(Calendar.DAY_OF_WEEK));
-                boolean removeException = false;
-                Set<String> dateSet = removeExceptions.get(svcCal
-                        .getServiceId());
-                if (dateSet != null) {
-                    removeException = dateSet
-                            .contains(constructMDYString(start));
-                }
-                if (gd == 1 && !removeException)
-                    break;
-                start = start.plusDays(1);
-            }
-            if (earliestStart == null || start.isBefore(earliestStart))
-                earliestStart = start;
-
-        }
-
-        // now, expand based on calendar_dates.txt
-        for (Set<ServiceDate> dateSet : addExceptions.values()) {
-            for (ServiceDate sd : dateSet) {
-                DateTime dt = new DateTime(sd.getAsDate(timezone).getTime());
-                if (dt.isAfter(latestEnd))
-                    latestEnd = dt;
-                if (dt.isBefore(earliestStart))
-                    earliestStart = dt;
-            }
-        }
-        
-        this.startDate = earliestStart.toDate();
-        this.endDate = latestEnd.toDate();        
-    }
-    
-    private static int getDay(ServiceCalendar cal, int dow) {
-        switch(dow) {
-            case 1: return cal.getMonday();
-            case 2: return cal.getTuesday();
-            case 3: return cal.getWednesday();
-            case 4: return cal.getThursday();
-            case 5: return cal.getFriday();
-            case 6: return cal.getSaturday();
-            case 7: return cal.getSunday();
-        }
-        return 0;
-    }
-    
-    private static String constructMDYString(ServiceDate date) {
-        return date.getMonth()+"-"+date.getDay()+"-"+date.getYear();
+		// otherwise use the first and last days with service in calendar.txt and
+		// calendar_dates.txt
+		if (!serviceCalendar.hasService())
+		    throw new Exception("Feed " + rawGtfs + " has no active service");
+		
+		this.startDate = toGtfsNoon(serviceCalendar.getFirstActiveDate());
+		this.endDate = toGtfsNoon(serviceCalendar.getLastActiveDate());
     }
-    
-    private static String constructMDYString(DateTime dt) {
-        return dt.getMonthOfYear()+"-"+dt.getDayOfMonth()+"-"+dt.getYear();
+	
+	/**
+	 * Get the given service day at noon in the feed time zone.
+	 */
+	private Date toGtfsNoon (ServiceDate d) {
+	    Calendar c = d.getAsCalendar(timezone);
+	    // move to GTFS noon, which will always be during the day. This accounts for both
+	    // multitimezone feeds and for daylight savings time 
+	    c.add(Calendar.HOUR_OF_DAY, 12);
+	    return c.getTime();
+	}
+	
+    /**
+     * Is this stop location near 0,0 island? Such stops are ignored when calculating geometry.
+     */
+    static boolean isNearNullIsland (double lon, double lat) {
+        return Math.abs(lon) < 1 && Math.abs(lat) < 1;
     }
 	
-    private void calculateGeometry () {
-        List<Coordinate> stopsGeom = new ArrayList<Coordinate>();
-        // Make a coordinate for each stop, and add it to the MultiPoint
-        double lon, lat;
-        for (Stop stop : store.getAllStops()) {
-            lon = stop.getLon();
-            lat = stop.getLat();
-
-            // ignore stops near 0,0 island
-            if (Math.abs(lon) < 1 && Math.abs(lat) <1)
-                continue;
-
-            stopsGeom.add(
-                    new Coordinate(lon, lat)
-                    );
-        }
-
+    private void calculateGeometry (List<Coordinate> stopsGeom) {
         GeometryFactory gf = GeometryUtils.getGeometryFactoryForSrid(4326);
         Coordinate[] coords = new Coordinate[stopsGeom.size()];
         stopsGeom.toArray(coords);
@@ -309,11 +289,8 @@ public class FeedStatsCalculator {
      */
     public void applyExtended(GtfsFeed feed) {
         this.apply(feed);
-        for (Agency agency : store.getAllAgencies()) {
-            feed.agencyName = agency.getName();
-            feed.agencyUrl = agency.getUrl();
-            break;
-        }
+        feed.agencyName = this.agencyName;
+        feed.agencyUrl = this.agencyUrl;
     }
 }
 
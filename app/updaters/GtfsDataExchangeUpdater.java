@@ -15,23 +15,21 @@
 
 package updaters;
 
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.File;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.io.File;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import play.Logger;
-import play.db.jpa.JPA;
+import play.Play;
 import play.db.jpa.JPAPlugin;
-import play.db.jpa.NoTransaction;
-import play.exceptions.JPAException;
 import play.libs.WS;
 import play.libs.WS.HttpResponse;
-import play.libs.XPath;
 import utils.FeedUtils;
 import models.FeedParseStatus;
 import models.GtfsFeed;
@@ -39,9 +37,6 @@ import models.MetroArea;
 import models.NtdAgency;
 import models.ReviewType;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
@@ -49,24 +44,42 @@ import com.google.gson.JsonObject;
 /**
  * This class reads the RSS from GTFS Data Exchange and updates the database with that information.
  * It also handles hooks, calling them with the feeds that have changed.
+ * 
+ * The update runs as a pipeline: the agency list is read and compared with the database first,
+ * then the changed feeds are downloaded and their stats calculated by pools of worker threads, with
+ * bounded queues between the stages. All database writes happen in the calling thread, in its
+ * transaction, in the order the stats are finished.
  * @author mattwigway
  */
 public class GtfsDataExchangeUpdater implements Updater {	
 	public Set<MetroArea> update (FeedStorer storer) {	    
 		Set<MetroArea> updated = new HashSet<MetroArea>();
 		
+		int downloadThreads = getConfig("download_threads", 4);
+		int calculateThreads = getConfig("calculate_threads", 2);
+		int queueSize = getConfig("queue_size", 8);
+		int memoryBudgetMb = getConfig("memory_budget_mb", 512);
+		
 		// First, fetch the RSS feed
-		HttpResponse res = WS.url("http://www.gtfs-data-exchange.com/api/agencies").get();
-		int status = res.getStatus(); 
-		if (status != 200) {
-			Logger.error("Error fetching GTFS changes from Data Exchange: HTTP status %s", status);
+		ConditionalFetcher.Fetch fetch =
+		        ConditionalFetcher.get("http://www.gtfs-data-exchange.com/api/agencies");
+		if (!fetch.success()) {
+			Logger.error("Error fetching GTFS changes from Data Exchange: HTTP status %s",
+			        fetch.response.getStatus());
 			return null;
 		}
 		
-		JsonObject agencies = res.getJson().getAsJsonObject();
+		if (fetch.notModified()) {
+		    Logger.info("GTFS Data Exchange agency list not modified");
+		    return updated;
+		}
+		
+		JsonObject agencies = fetch.response.getJson().getAsJsonObject();
 		JsonArray data = agencies.get("data").getAsJsonArray();
 		JsonObject feed;
 		
+		List<FeedUpdate> changed = new ArrayList<FeedUpdate>();
+		
 		for (JsonElement rawFeed : data) {
             feed = rawFeed.getAsJsonObject();
 
@@ -89,98 +102,292 @@ public class GtfsDataExchangeUpdater implements Updater {
                     continue;
                 }
             }
+            
+            changed.add(new FeedUpdate(feed, dataExchangeId, originalFeed));
+		}
+		
+		if (changed.isEmpty()) {
+		    fetch.processed();
+		    return updated;
+		}
+		
+		BlockingQueue<FeedUpdate> toCalculate = new ArrayBlockingQueue<FeedUpdate>(queueSize);
+		BlockingQueue<FeedUpdate> toSave = new ArrayBlockingQueue<FeedUpdate>(queueSize);
+		MemoryBudget memory = new MemoryBudget(memoryBudgetMb);
+		
+		ExecutorService downloaders = Executors.newFixedThreadPool(downloadThreads);
+		ExecutorService calculators = Executors.newFixedThreadPool(calculateThreads);
+		
+		try {
+		    for (FeedUpdate feedUpdate : changed) {
+		        downloaders.execute(new Downloader(feedUpdate, storer, toCalculate, toSave));
+		    }
+		    
+		    for (int i = 0; i < calculateThreads; i++) {
+		        calculators.execute(new Calculator(storer, memory, toCalculate, toSave));
+		    }
+		    
+		    // every changed feed reaches the save queue exactly once, whether or not it could be
+		    // downloaded and parsed
+		    boolean complete = true;
+		    for (int i = 0; i < changed.size(); i++) {
+		        complete &= save(toSave.take(), updated);
+		    }
+		    
+		    // if any feed could not be downloaded, the agency list must not come back as not
+		    // modified next time, or the feed would never be retried
+		    if (complete)
+		        fetch.processed();
+		} catch (InterruptedException e) {
+		    Logger.error("Interrupted while updating feeds from GTFS Data Exchange");
+		    Thread.currentThread().interrupt();
+		} finally {
+		    downloaders.shutdownNow();
+		    calculators.shutdownNow();
+		}
+		
+		return updated;
+	}
+	
+	/**
+	 * Save a downloaded feed, superseding the feed it replaces. This is the only stage that
+	 * touches the database.
+	 * @return false if the feed was not downloaded
+	 */
+	private boolean save (FeedUpdate feedUpdate, Set<MetroArea> updated) {
+	    if (feedUpdate.feedId == null)
+	        // feed will be redownloaded on next attempt
+	        return false;
+	    
+	    GtfsFeed originalFeed = feedUpdate.originalFeed;
+	    GtfsFeed newFeed;
+	    boolean isNew;
+	    // copy over all the data.
+	    if (originalFeed != null) {
+	        isNew = false;
+	        newFeed = originalFeed.clone();
+	    }
+	    else {
+	        newFeed = new GtfsFeed();
+	        newFeed.note = "new feed";
+	        isNew = true;
+	    }
 
-            // get the data file URL
-            res = WS.url("http://www.gtfs-data-exchange.com/agency/" + 
-                    dataExchangeId + "/json").get();
-            status = res.getStatus();
-            if (status != 200) {
-                Logger.error("Error fetching agency %s, status %s", dataExchangeId, status);
-                continue;
-            }
+	    // update all fields
+	    FeedUtils.copyFromJson(feedUpdate.feed, newFeed);
+	    newFeed.downloadUrl = feedUpdate.url;
+	    newFeed.storedId = feedUpdate.feedId;
 
-            JsonObject agency = res.getJson().getAsJsonObject();
-            JsonArray files = agency.get("data").getAsJsonObject()
-                    .get("datafiles").getAsJsonArray();
-            JsonObject firstFile = files.get(0).getAsJsonObject();
-            String url = firstFile.get("file_url").getAsString();
-
-            // Download the feed
-            String feedId = storer.storeFeed(url);
-            if (feedId == null) {
-                Logger.error("Could not retrieve feed %s", url);
-                // feed will be redownloaded on next attempt
-                continue;
-            }
+	    if (feedUpdate.stats == null) {
+	        // still save it in the DB
+	        newFeed.status = FeedParseStatus.FAILED;
+	        newFeed.save();
 
-            GtfsFeed newFeed;
-            boolean isNew;
-            // copy over all the data.
-            if (originalFeed != null) {
-                isNew = false;
-                newFeed = originalFeed.clone();
-            }
-            else {
-                newFeed = new GtfsFeed();
-                newFeed.note = "new feed";
-                isNew = true;
-            }
+	        if (originalFeed != null) {
+	            originalFeed.supersededBy = newFeed;
+	            originalFeed.save();
+	        }
 
-            // update all fields
-            FeedUtils.copyFromJson(feed, newFeed);
-            newFeed.downloadUrl = url;
-            newFeed.storedId = feedId;
-
-            // Calculate feed stats
-            File feedFile = storer.getFeed(feedId);
-
-            FeedStatsCalculator stats;
-            try {
-                stats = new FeedStatsCalculator(feedFile);
-            } catch (Exception e) {
-                // TODO be more descriptive
-                Logger.error("Error calculating feed stats for feed %s", url);
-                e.printStackTrace();
-
-                // still save it in the DB
-                newFeed.status = FeedParseStatus.FAILED;
-                newFeed.save();
-                
-                if (originalFeed != null) {
-                    originalFeed.supersededBy = newFeed;
-                    originalFeed.save();
-                }
+	        return true;
+	    }
 
-                continue;
-            }
+	    // save the stats
+	    feedUpdate.stats.apply(newFeed);
+	    newFeed.status = FeedParseStatus.SUCCESSFUL;
+	    newFeed.save();
 
-            storer.releaseFeed(feedId);
+	    // if it's a new feed, find an agency.
+	    if (isNew) {
+	        if (!newFeed.findAgency())
+	            newFeed.review = ReviewType.NO_AGENCY;
 
-            // save the stats
-            stats.apply(newFeed);
-            newFeed.status = FeedParseStatus.SUCCESSFUL;
-            newFeed.save();
+	        newFeed.save();
+	    }
 
-            // if it's a new feed, find an agency.
-            if (isNew) {
-                if (!newFeed.findAgency())
-                    newFeed.review = ReviewType.NO_AGENCY;
+	    newFeed.updateAgencyGeoms();
 
-                newFeed.save();
-            }
+	    for (NtdAgency ntd : newFeed.getEnabledAgencies()) {
+	        for (MetroArea metro : ntd.getEnabledMetroAreas()) {
+	            updated.add(metro);
+	        }
+	    }
 
-            for (NtdAgency ntd : newFeed.getEnabledAgencies()) {
-                for (MetroArea metro : ntd.getEnabledMetroAreas()) {
-                    updated.add(metro);
-                }
-            }
+	    if (originalFeed != null) {
+	        originalFeed.supersededBy = newFeed;
+	        originalFeed.save();
+	    }
+	    
+	    return true;
+	}
+	
+	private static int getConfig (String key, int defaultValue) {
+	    return Integer.parseInt(Play.configuration.getProperty("dashboard.gtfsdataexchange." + key,
+	            Integer.toString(defaultValue)));
+	}
+	
+	/**
+	 * A feed that has changed on GTFS Data Exchange, as it moves through the pipeline.
+	 */
+	private static class FeedUpdate {
+	    /** The agency from the agency list */
+	    public JsonObject feed;
+	    public String dataExchangeId;
+	    
+	    /** The feed this will supersede, or null if it is a new feed */
+	    public GtfsFeed originalFeed;
+	    
+	    public String url;
+	    
+	    /** The ID in storage, or null if the feed could not be downloaded */
+	    public String feedId;
+	    
+	    /** The stats, or null if they could not be calculated */
+	    public FeedStatsCalculator stats;
+	    
+	    public FeedUpdate (JsonObject feed, String dataExchangeId, GtfsFeed originalFeed) {
+	        this.feed = feed;
+	        this.dataExchangeId = dataExchangeId;
+	        this.originalFeed = originalFeed;
+	        this.url = null;
+	        this.feedId = null;
+	        this.stats = null;
+	    }
+	}
+	
+	/**
+	 * Find the data file for a feed and store it. Feeds that were stored go on to have their stats
+	 * calculated; feeds that were not go straight to the save stage, which ignores them.
+	 */
+	private static class Downloader implements Runnable {
+	    private FeedUpdate feedUpdate;
+	    private FeedStorer storer;
+	    private BlockingQueue<FeedUpdate> toCalculate;
+	    private BlockingQueue<FeedUpdate> toSave;
+	    
+	    public Downloader (FeedUpdate feedUpdate, FeedStorer storer,
+	            BlockingQueue<FeedUpdate> toCalculate, BlockingQueue<FeedUpdate> toSave) {
+	        this.feedUpdate = feedUpdate;
+	        this.storer = storer;
+	        this.toCalculate = toCalculate;
+	        this.toSave = toSave;
+	    }
+	    
+	    public void run () {
+	        try {
+	            download();
+	        } catch (Throwable e) {
+	            // errors too, or the update would wait for this feed forever
+	            Logger.error("Error downloading agency %s", feedUpdate.dataExchangeId);
+	            e.printStackTrace();
+	            feedUpdate.feedId = null;
+	        } finally {
+	            try {
+	                if (feedUpdate.feedId != null)
+	                    toCalculate.put(feedUpdate);
+	                else
+	                    toSave.put(feedUpdate);
+	            } catch (InterruptedException e) {
+	                // the update is being shut down
+	            }
+	        }
+	    }
+	    
+	    private void download () {
+	        // get the data file URL
+	        HttpResponse res = WS.url("http://www.gtfs-data-exchange.com/agency/" + 
+	                feedUpdate.dataExchangeId + "/json").get();
+	        int status = res.getStatus();
+	        if (status != 200) {
+	            Logger.error("Error fetching agency %s, status %s", feedUpdate.dataExchangeId, status);
+	            return;
+	        }
 
-            if (originalFeed != null) {
-                originalFeed.supersededBy = newFeed;
-                originalFeed.save();
-            }
-		}
-		
-		return updated;
+	        JsonObject agency = res.getJson().getAsJsonObject();
+	        JsonArray files = agency.get("data").getAsJsonObject()
+	                .get("datafiles").getAsJsonArray();
+	        JsonObject firstFile = files.get(0).getAsJsonObject();
+	        feedUpdate.url = firstFile.get("file_url").getAsString();
+
+	        // Download the feed
+	        feedUpdate.feedId = storer.storeFeed(feedUpdate.url);
+	        if (feedUpdate.feedId == null)
+	            Logger.error("Could not retrieve feed %s", feedUpdate.url);
+	    }
+	}
+	
+	/**
+	 * Calculate stats for stored feeds until the update is shut down.
+	 */
+	private static class Calculator implements Runnable {
+	    private FeedStorer storer;
+	    private MemoryBudget memory;
+	    private BlockingQueue<FeedUpdate> toCalculate;
+	    private BlockingQueue<FeedUpdate> toSave;
+	    
+	    public Calculator (FeedStorer storer, MemoryBudget memory,
+	            BlockingQueue<FeedUpdate> toCalculate, BlockingQueue<FeedUpdate> toSave) {
+	        this.storer = storer;
+	        this.memory = memory;
+	        this.toCalculate = toCalculate;
+	        this.toSave = toSave;
+	    }
+	    
+	    public void run () {
+	        try {
+	            while (true) {
+	                FeedUpdate feedUpdate = toCalculate.take();
+	                try {
+	                    calculate(feedUpdate);
+	                } finally {
+	                    // every feed must reach the save stage, or the update would wait for it
+	                    // forever
+	                    toSave.put(feedUpdate);
+	                }
+	            }
+	        } catch (InterruptedException e) {
+	            // the update is being shut down
+	            return;
+	        }
+	    }
+	    
+	    private void calculate (FeedUpdate feedUpdate) throws InterruptedException {
+	        File feedFile = null;
+	        
+	        try {
+	            feedFile = storer.getFeed(feedUpdate.feedId);
+	            int reserved = memory.acquire(feedFile);
+	            
+	            try {
+	                // the stats cache needs a transaction of its own in this thread
+	                boolean rollback = true;
+	                JPAPlugin.startTx(false);
+	                try {
+	                    feedUpdate.stats = FeedStatsCache.getStats(feedFile);
+	                    rollback = false;
+	                } finally {
+	                    JPAPlugin.closeTx(rollback);
+	                }
+	            } finally {
+	                memory.release(reserved);
+	            }
+	        } catch (InterruptedException e) {
+	            // keep the interrupt, so the feed is not handed to the save stage either
+	            Thread.currentThread().interrupt();
+	            throw e;
+	        } catch (Throwable e) {
+	            // including errors, e.g. running out of memory parsing a very large feed
+	            // TODO be more descriptive
+	            Logger.error("Error calculating feed stats for feed %s", feedUpdate.url);
+	            e.printStackTrace();
+	            feedUpdate.stats = null;
+	        } finally {
+	            if (feedFile != null)
+	                storer.releaseFeed(feedUpdate.feedId);
+	        }
+	    }
+	}
+	
+	public String toString () {
+	    return "GtfsDataExchangeUpdater";
 	}
 }
@@ -0,0 +1,357 @@
+/*
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package updaters;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.onebusaway.gtfs.model.Agency;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.FeedInfo;
+import org.onebusaway.gtfs.model.ServiceCalendar;
+import org.onebusaway.gtfs.model.ServiceCalendarDate;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+
+import utils.GeometryUtils;
+
+import com.vividsolutions.jts.algorithm.ConvexHull;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+/**
+ * Read just the parts of a GTFS feed that are needed for feed stats: agency.txt, feed_info.txt,
+ * calendar.txt, calendar_dates.txt and stops.txt. Each file is read once, straight from the zip;
+ * stop_times.txt and the other large files are never touched. Stop locations are folded into a
+ * running convex hull as they are read, so memory does not grow with the number of stops.
+ *
+ * The calendar entities are built as OneBusAway model objects, so that FeedStatsCalculator can
+ * run exactly the same calculations it runs on a full GtfsDaoImpl.
+ *
+ * @author mattwigway
+ */
+public class GtfsStatsReader {
+    /** Reduce the buffered stop coordinates to their convex hull when this many are buffered */
+    private static final int HULL_BUFFER_SIZE = 10000;
+
+    private File gtfs;
+    private ZipFile zip;
+
+    /** keyed by agency ID, as in GtfsDaoImpl, so the "first" agency is the same one */
+    private Map<String, Agency> agencies;
+    private String defaultAgencyId;
+    private FeedInfo feedInfo;
+    private List<ServiceCalendar> calendars;
+    private List<ServiceCalendarDate> calendarDates;
+    private Set<String> stopIds;
+    private List<Coordinate> stopCoords;
+
+    public GtfsStatsReader (File gtfs) {
+        this.gtfs = gtfs;
+        this.agencies = new HashMap<String, Agency>();
+        this.defaultAgencyId = null;
+        this.feedInfo = null;
+        this.calendars = new ArrayList<ServiceCalendar>();
+        this.calendarDates = new ArrayList<ServiceCalendarDate>();
+        this.stopIds = new HashSet<String>();
+        this.stopCoords = new ArrayList<Coordinate>();
+    }
+
+    /**
+     * Read the feed. Throws an exception if a required file is missing or malformed, as the
+     * OneBusAway reader would.
+     */
+    public void run () throws Exception {
+        if (!gtfs.isDirectory())
+            zip = new ZipFile(gtfs);
+
+        try {
+            // agency.txt comes first so that service IDs get the same default agency as in OBA
+            readAgencies();
+            readFeedInfo();
+            readCalendars();
+            readCalendarDates();
+            readStops();
+        } finally {
+            if (zip != null)
+                zip.close();
+        }
+    }
+
+    public Collection<Agency> getAgencies () {
+        return agencies.values();
+    }
+
+    public FeedInfo getFeedInfo () {
+        return feedInfo;
+    }
+
+    public List<ServiceCalendar> getCalendars () {
+        return calendars;
+    }
+
+    public List<ServiceCalendarDate> getCalendarDates () {
+        return calendarDates;
+    }
+
+    /**
+     * Get the number of distinct stops in this feed.
+     */
+    public int getStopCount () {
+        return stopIds.size();
+    }
+
+    /**
+     * Get the stop coordinates, reduced to those that may be on the convex hull. Stops near 0,0
+     * have already been removed.
+     */
+    public List<Coordinate> getStopCoordinates () {
+        reduceStopCoordinates();
+        return stopCoords;
+    }
+
+    private void readAgencies () throws Exception {
+        GtfsTable table = openTable("agency.txt", true);
+
+        try {
+            while (table.next()) {
+                Agency agency = new Agency();
+                agency.setName(table.get("agency_name"));
+                agency.setUrl(table.get("agency_url"));
+                agency.setTimezone(table.get("agency_timezone"));
+
+                // OBA uses the agency name when there is no ID
+                String id = table.get("agency_id");
+                agency.setId(id != null ? id : agency.getName());
+
+                if (defaultAgencyId == null)
+                    defaultAgencyId = agency.getId();
+
+                agencies.put(agency.getId(), agency);
+            }
+        } finally {
+            table.close();
+        }
+    }
+
+    private void readFeedInfo () throws Exception {
+        GtfsTable table = openTable("feed_info.txt", false);
+
+        if (table == null)
+            return;
+
+        try {
+            // only the first row is used, as in FeedStatsCalculator
+            if (table.next()) {
+                feedInfo = new FeedInfo();
+                feedInfo.setId(1);
+                feedInfo.setStartDate(parseDate(table.get("feed_start_date")));
+                feedInfo.setEndDate(parseDate(table.get("feed_end_date")));
+            }
+        } finally {
+            table.close();
+        }
+    }
+
+    private void readCalendars () throws Exception {
+        GtfsTable table = openTable("calendar.txt", false);
+
+        if (table == null)
+            return;
+
+        try {
+            while (table.next()) {
+                ServiceCalendar cal = new ServiceCalendar();
+                cal.setServiceId(new AgencyAndId(defaultAgencyId, table.get("service_id")));
+                cal.setMonday(Integer.parseInt(table.get("monday")));
+                cal.setTuesday(Integer.parseInt(table.get("tuesday")));
+                cal.setWednesday(Integer.parseInt(table.get("wednesday")));
+                cal.setThursday(Integer.parseInt(table.get("thursday")));
+                cal.setFriday(Integer.parseInt(table.get("friday")));
+                cal.setSaturday(Integer.parseInt(table.get("saturday")));
+                cal.setSunday(Integer.parseInt(table.get("sunday")));
+                cal.setStartDate(ServiceDate.parseString(table.get("start_date")));
+                cal.setEndDate(ServiceDate.parseString(table.get("end_date")));
+                calendars.add(cal);
+            }
+        } finally {
+            table.close();
+        }
+    }
+
+    private void readCalendarDates () throws Exception {
+        GtfsTable table = openTable("calendar_dates.txt", false);
+
+        if (table == null)
+            return;
+
+        try {
+            while (table.next()) {
+                ServiceCalendarDate date = new ServiceCalendarDate();
+                date.setServiceId(new AgencyAndId(defaultAgencyId, table.get("service_id")));
+                date.setDate(ServiceDate.parseString(table.get("date")));
+                date.setExceptionType(Integer.parseInt(table.get("exception_type")));
+                calendarDates.add(date);
+            }
+        } finally {
+            table.close();
+        }
+    }
+
+    private void readStops () throws Exception {
+        GtfsTable table = openTable("stops.txt", true);
+        double lat, lon;
+
+        try {
+            while (table.next()) {
+                stopIds.add(table.get("stop_id"));
+
+                lat = Double.parseDouble(table.get("stop_lat"));
+                lon = Double.parseDouble(table.get("stop_lon"));
+
+                if (FeedStatsCalculator.isNearNullIsland(lon, lat))
+                    continue;
+
+                stopCoords.add(new Coordinate(lon, lat));
+
+                if (stopCoords.size() >= HULL_BUFFER_SIZE)
+                    reduceStopCoordinates();
+            }
+        } finally {
+            table.close();
+        }
+    }
+
+    /**
+     * Replace the buffered coordinates with the vertices of their convex hull. The hull of the
+     * hull plus some more points is the hull of all the points, so this does not change the
+     * final geometry.
+     */
+    private void reduceStopCoordinates () {
+        if (stopCoords.size() < 3)
+            return;
+
+        GeometryFactory gf = GeometryUtils.getGeometryFactoryForSrid(4326);
+        Coordinate[] coords = new Coordinate[stopCoords.size()];
+        coords = stopCoords.toArray(coords);
+
+        stopCoords = new ArrayList<Coordinate>();
+        for (Coordinate c : new ConvexHull(coords, gf).getConvexHull().getCoordinates()) {
+            stopCoords.add(c);
+        }
+    }
+
+    private static ServiceDate parseDate (String date) throws Exception {
+        if (date == null)
+            return null;
+
+        return ServiceDate.parseString(date);
+    }
+
+    /**
+     * Open the named file in the feed.
+     * @param required if true, throw an exception when the file is missing; otherwise return null
+     */
+    private GtfsTable openTable (String name, boolean required) throws IOException {
+        InputStream in = null;
+
+        if (zip != null) {
+            ZipEntry entry = zip.getEntry(name);
+            if (entry != null)
+                in = zip.getInputStream(entry);
+        }
+        else {
+            File file = new File(gtfs, name);
+            if (file.exists())
+                in = new FileInputStream(file);
+        }
+
+        if (in == null) {
+            if (required)
+                throw new IOException("GTFS feed " + gtfs + " is missing required file " + name);
+            return null;
+        }
+
+        return new GtfsTable(in);
+    }
+
+    /**
+     * A GTFS CSV file, with its columns looked up by name.
+     */
+    private static class GtfsTable {
+        private CSVReader reader;
+        private Map<String, Integer> columns;
+        private String[] row;
+
+        public GtfsTable (InputStream in) throws IOException {
+            reader = new CSVReader(new InputStreamReader(in, "UTF-8"));
+            columns = new HashMap<String, Integer>();
+
+            String[] header = reader.readNext();
+            if (header == null)
+                return;
+
+            for (int i = 0; i < header.length; i++) {
+                String col = header[i];
+                // strip the byte order mark some editors put at the start of the file
+                if (i == 0 && col.length() > 0 && col.charAt(0) == '\uFEFF')
+                    col = col.substring(1);
+                columns.put(col.trim(), i);
+            }
+        }
+
+        /**
+         * Advance to the next non-blank row.
+         * @return false at the end of the file
+         */
+        public boolean next () throws IOException {
+            do {
+                row = reader.readNext();
+            } while (row != null && row.length == 1 && row[0].trim().length() == 0);
+
+            return row != null;
+        }
+
+        /**
+         * Get the value of the given column in the current row, or null if it is empty.
+         */
+        public String get (String column) {
+            Integer idx = columns.get(column);
+            if (idx == null || idx >= row.length)
+                return null;
+
+            String val = row[idx].trim();
+            return val.length() == 0 ? null : val;
+        }
+
+        public void close () throws IOException {
+            reader.close();
+        }
+    }
+}
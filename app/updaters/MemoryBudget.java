@@ -0,0 +1,58 @@
+/*
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package updaters;
+
+import java.io.File;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits the memory used by feed stats calculations that run at the same time. Each calculation
+ * reserves an estimate of the memory it will need, in megabytes, before it starts, and waits if
+ * the budget is used up.
+ *
+ * @author mattwigway
+ */
+public class MemoryBudget {
+    /**
+     * Assume that parsing a feed takes this many times its zipped size in memory. This is generous
+     * for the streaming engine, but about right for the OneBusAway engine.
+     */
+    private static final int MEMORY_PER_BYTE = 10;
+
+    private Semaphore permits;
+    private int budgetMb;
+
+    public MemoryBudget (int budgetMb) {
+        this.budgetMb = budgetMb;
+        this.permits = new Semaphore(budgetMb);
+    }
+
+    /**
+     * Reserve memory to calculate stats for the given GTFS file. A feed larger than the whole
+     * budget still runs, but by itself.
+     * @return the number of megabytes reserved, to pass to release.
+     */
+    public int acquire (File gtfs) throws InterruptedException {
+        int mb = (int) Math.min(budgetMb,
+                Math.max(1, gtfs.length() * MEMORY_PER_BYTE / (1024 * 1024)));
+        permits.acquire(mb);
+        return mb;
+    }
+
+    public void release (int mb) {
+        permits.release(mb);
+    }
+}
@@ -15,6 +15,8 @@
 
 package updaters;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -22,41 +24,70 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.regex.Pattern;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
 import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
 import com.amazonaws.services.s3.model.PutObjectResult;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
 
 import play.Logger;
+import play.libs.Codec;
 import play.libs.WS;
+import utils.HashUtils;
 
 /**
  * Store feeds in S3
  * @author mattwigway
  */
 public class S3FeedStorer implements FeedStorer {
+	/** S3 rejects multipart uploads with parts smaller than this, other than the last */
+	public static final int MIN_PART_SIZE_MB = 5;
+	
+	/** How many times an upload request is tried before the upload fails */
+	private static final int UPLOAD_ATTEMPTS = 4;
+	
 	private String path;
 	private AWSCredentials credentials;
 	private String accessKey;
 	private String secretKey;
 	private AmazonS3 s3Client;
 	private String bucket;
+	/** feeds are fetched and released by several worker threads at once */
 	private Map<String, File> tempFiles;
+	private String cacheDirectory;
+	private long cacheSizeMb;
+	private FeedFileCache cache;
+	private String endpoint;
+	private int partSizeMb;
+	private int uploadThreads;
 	
 	public void setAccessKey (String accessKey) {
 		this.accessKey = accessKey;
@@ -72,17 +103,90 @@ public class S3FeedStorer implements FeedStorer {
 		this.bucket = bucket;
 	}
 	
+	/**
+	 * Keep downloaded feeds in a local cache in this directory. Without this, each getFeed
+	 * downloads the feed again.
+	 */
+	public void setCacheDirectory (String cacheDirectory) {
+	    this.cacheDirectory = cacheDirectory;
+	    buildCacheIfReady();
+	}
+	
+	/**
+	 * The size of the local cache, in megabytes.
+	 */
+	public void setCacheSizeMb (long cacheSizeMb) {
+	    this.cacheSizeMb = cacheSizeMb;
+	    buildCacheIfReady();
+	}
+	
+	private void buildCacheIfReady() {
+	    if (cacheDirectory != null && cacheSizeMb > 0)
+	        cache = new FeedFileCache(new File(cacheDirectory), cacheSizeMb * 1024 * 1024);
+	}
+	
+	/**
+	 * @return the local cache, or null if feeds are not cached
+	 */
+	public FeedFileCache getCache () {
+	    return cache;
+	}
+	
+	/**
+	 * Use an S3 endpoint other than the default, e.g. another region or a local S3 stand-in
+	 * for testing.
+	 */
+	public void setEndpoint (String endpoint) {
+	    this.endpoint = endpoint;
+	    if (s3Client != null)
+	        s3Client.setEndpoint(endpoint);
+	}
+	
+	/**
+	 * Use the given client rather than one built from the keys, e.g. a stand-in for S3 when
+	 * testing.
+	 */
+	public void setS3Client (AmazonS3 s3Client) {
+	    this.s3Client = s3Client;
+	}
+	
+	/**
+	 * Feeds are uploaded in parts of this size, in megabytes; S3 requires at least 5.
+	 */
+	public void setPartSizeMb (int partSizeMb) {
+	    if (partSizeMb < MIN_PART_SIZE_MB)
+	        throw new IllegalArgumentException("S3 parts must be at least " + MIN_PART_SIZE_MB +
+	                " MB, not " + partSizeMb);
+	    
+	    this.partSizeMb = partSizeMb;
+	}
+	
+	/**
+	 * The number of parts of a feed to upload at once.
+	 */
+	public void setUploadThreads (int uploadThreads) {
+	    this.uploadThreads = uploadThreads;
+	}
+	
 	private void buildCredentialsIfReady() {
 		if (accessKey != null && secretKey != null) {
 			credentials = new BasicAWSCredentials(accessKey, secretKey);
 			s3Client = new AmazonS3Client(credentials);
+			if (endpoint != null)
+			    s3Client.setEndpoint(endpoint);
 		}
 	}
 
 	public S3FeedStorer () {
 		this.accessKey = null;
 		this.secretKey = null;
-		this.tempFiles = new HashMap<String, File>();
+		this.tempFiles = new ConcurrentHashMap<String, File>();
+		this.cacheDirectory = null;
+		this.cacheSizeMb = 0;
+		this.cache = null;
+		this.endpoint = null;
+		this.partSizeMb = 8;
+		this.uploadThreads = 4;
 	}
 	
 	private static Pattern uuidRe = Pattern.compile("^[0-9a-fA-F\\-]+$");
@@ -110,36 +214,227 @@ public class S3FeedStorer implements FeedStorer {
 			return null;
 		}
 		
-		URLConnection conn;
-		try {
-			conn = feed.openConnection();
-		} catch (IOException e1) {
-			Logger.error("IOException retrieving URL %s", url);
-			e1.printStackTrace();
-			return null;
-		}
-		
-		ObjectMetadata meta = new ObjectMetadata();
-		meta.setContentType("application/x-zip-compressed");
-		// TODO check that this is valid
-		meta.setContentLength(conn.getContentLength());
-		
+		// the Content-Length is not used, since the server may not send one, or it may be wrong
 		InputStream feedStream;
 		try {
-			feedStream = conn.getInputStream();
+			feedStream = feed.openStream();
 		} catch (IOException e) {
 			Logger.error("IOException retrieving URL %s", url);
 			e.printStackTrace();
 			return null;
 		}
 		
-		// no need to save result, this will throw an error if it doesn't work
-		this.s3Client.putObject(this.bucket, id, feedStream, meta);
+		try {
+		    if (!upload(id, feedStream))
+		        return null;
+		} catch (IOException e) {
+		    Logger.error("IOException retrieving URL %s", url);
+		    e.printStackTrace();
+		    return null;
+		} finally {
+		    try {
+		        feedStream.close();
+		    } catch (IOException e) {
+		        Logger.error("Cannot close stream for %s", url);
+		    }
+		}
 		
 		Logger.info("saved with id %s", id);
 		return id;
 	}
 
+	/**
+	 * Upload a feed as it is downloaded, in fixed-size parts, several at once. At most
+	 * uploadThreads + 1 parts are held in memory. Each part is sent with its MD5 so S3 can
+	 * check it, and is retried if it fails; the ETag of the completed upload is checked against
+	 * the MD5s of the parts. A feed smaller than one part is uploaded in a single request, which
+	 * is checked and retried the same way.
+	 * @return true if the feed was uploaded.
+	 */
+	private boolean upload (final String id, InputStream in) throws IOException {
+	    int partSize = partSizeMb * 1024 * 1024;
+	    
+	    final ObjectMetadata meta = new ObjectMetadata();
+	    meta.setContentType("application/x-zip-compressed");
+	    
+	    byte[] part = readPart(in, partSize);
+	    
+	    if (part.length < partSize) {
+	        final byte[] data = part;
+	        byte[] md5 = md5(data);
+	        meta.setContentLength(data.length);
+	        meta.setContentMD5(Codec.encodeBASE64(md5));
+	        
+	        try {
+	            PutObjectResult result = retry("feed " + id, new Callable<PutObjectResult>() {
+	                public PutObjectResult call () {
+	                    return s3Client.putObject(bucket, id, new ByteArrayInputStream(data), meta);
+	                }
+	            });
+	            
+	            // the ETag of a single-request upload is its MD5
+	            String expected = HashUtils.toHex(md5);
+	            String etag = result.getETag().replace("\"", "");
+	            if (!expected.equals(etag)) {
+	                Logger.error("Uploaded feed %s has ETag %s, expected %s; deleting", id, etag, expected);
+	                s3Client.deleteObject(bucket, id);
+	                return false;
+	            }
+	            
+	            return true;
+	        } catch (InterruptedException e) {
+	            Logger.error("Interrupted uploading feed %s", id);
+	            Thread.currentThread().interrupt();
+	            return false;
+	        } catch (Exception e) {
+	            Logger.error("Error uploading feed %s", id);
+	            e.printStackTrace();
+	            return false;
+	        }
+	    }
+	    
+	    String uploadId = s3Client.initiateMultipartUpload(
+	            new InitiateMultipartUploadRequest(bucket, id, meta)).getUploadId();
+	    
+	    ExecutorService executor = Executors.newFixedThreadPool(uploadThreads);
+	    Semaphore buffers = new Semaphore(uploadThreads + 1);
+	    List<Future<PartETag>> uploads = new ArrayList<Future<PartETag>>();
+	    ByteArrayOutputStream partMd5s = new ByteArrayOutputStream();
+	    
+	    try {
+	        // the first part was read before the upload started
+	        buffers.acquire();
+	        
+	        for (int partNumber = 1; part.length > 0; partNumber++) {
+	            byte[] md5 = md5(part);
+	            partMd5s.write(md5);
+	            uploads.add(executor.submit(new PartUpload(id, uploadId, partNumber, part, md5, buffers)));
+	            
+	            buffers.acquire();
+	            part = readPart(in, partSize);
+	        }
+	        
+	        // the empty part at the end of the stream
+	        buffers.release();
+	        
+	        List<PartETag> etags = new ArrayList<PartETag>();
+	        for (Future<PartETag> upload : uploads) {
+	            etags.add(upload.get());
+	        }
+	        
+	        CompleteMultipartUploadResult result = s3Client.completeMultipartUpload(
+	                new CompleteMultipartUploadRequest(bucket, id, uploadId, etags));
+	        
+	        // the ETag of a multipart upload is the MD5 of the MD5s of the parts, and the number of parts
+	        String expected = HashUtils.toHex(md5(partMd5s.toByteArray())) + "-" + etags.size();
+	        String etag = result.getETag().replace("\"", "");
+	        if (!expected.equals(etag)) {
+	            Logger.error("Uploaded feed %s has ETag %s, expected %s; deleting", id, etag, expected);
+	            s3Client.deleteObject(bucket, id);
+	            return false;
+	        }
+	        
+	        return true;
+	    } catch (InterruptedException e) {
+	        Logger.error("Interrupted uploading feed %s, aborting upload", id);
+	        s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, id, uploadId));
+	        Thread.currentThread().interrupt();
+	        return false;
+	    } catch (Exception e) {
+	        Logger.error("Error uploading feed %s, aborting upload", id);
+	        e.printStackTrace();
+	        s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, id, uploadId));
+	        return false;
+	    } finally {
+	        executor.shutdownNow();
+	    }
+	}
+	
+	/**
+	 * Make an upload request, retrying with a growing delay if it fails.
+	 * @param what what is being uploaded, for the log
+	 */
+	private static <T> T retry (String what, Callable<T> request) throws Exception {
+	    for (int attempt = 1; ; attempt++) {
+	        try {
+	            return request.call();
+	        } catch (AmazonClientException e) {
+	            if (attempt == UPLOAD_ATTEMPTS)
+	                throw e;
+	            
+	            Logger.warn("Error uploading %s, retrying (attempt %s)", what, attempt);
+	            Thread.sleep(1000L * attempt);
+	        }
+	    }
+	}
+	
+	/**
+	 * Read a part of an upload. This is full-size unless the stream ends first.
+	 */
+	private static byte[] readPart (InputStream in, int partSize) throws IOException {
+	    byte[] buf = new byte[partSize];
+	    int off = 0;
+	    int read;
+	    
+	    while (off < partSize && (read = in.read(buf, off, partSize - off)) != -1) {
+	        off += read;
+	    }
+	    
+	    return off == partSize ? buf : Arrays.copyOf(buf, off);
+	}
+	
+	private static byte[] md5 (byte[] data) {
+	    try {
+	        return MessageDigest.getInstance("MD5").digest(data);
+	    } catch (NoSuchAlgorithmException e) {
+	        throw new IllegalStateException("JVM does not support MD5", e);
+	    }
+	}
+	
+	/**
+	 * Upload one part of a multipart upload, retrying if it fails, then free its buffer.
+	 */
+	private class PartUpload implements Callable<PartETag> {
+	    private String id;
+	    private String uploadId;
+	    private int partNumber;
+	    private byte[] data;
+	    private byte[] md5;
+	    private Semaphore buffers;
+	    
+	    public PartUpload (String id, String uploadId, int partNumber, byte[] data, byte[] md5,
+	            Semaphore buffers) {
+	        this.id = id;
+	        this.uploadId = uploadId;
+	        this.partNumber = partNumber;
+	        this.data = data;
+	        this.md5 = md5;
+	        this.buffers = buffers;
+	    }
+	    
+	    public PartETag call () throws Exception {
+	        try {
+	            return retry("part " + partNumber + " of feed " + id, new Callable<PartETag>() {
+	                public PartETag call () {
+	                    UploadPartRequest req = new UploadPartRequest()
+	                        .withBucketName(bucket)
+	                        .withKey(id)
+	                        .withUploadId(uploadId)
+	                        .withPartNumber(partNumber)
+	                        .withPartSize(data.length)
+	                        .withMD5Digest(Codec.encodeBASE64(md5))
+	                        .withInputStream(new ByteArrayInputStream(data));
+	                    
+	                    return s3Client.uploadPart(req).getPartETag();
+	                }
+	            });
+	        } finally {
+	            data = null;
+	            buffers.release();
+	        }
+	    }
+	}
+
 	@Override
 	public File getFeed(String feedId) {
 		// make sure it looks like a UUID, so we don't have something like
@@ -147,6 +442,20 @@ public class S3FeedStorer implements FeedStorer {
 		if (!uuidRe.matcher(feedId).matches())
 			return null;
 		
+		if (cache != null) {
+		    try {
+		        return cache.pin(feedId, new FeedFileCache.Loader() {
+		            public void load(String id, File target) {
+		                s3Client.getObject(new GetObjectRequest(bucket, id), target);
+		            }
+		        });
+		    } catch (Exception e) {
+		        Logger.error("Could not retrieve feed %s", feedId);
+		        e.printStackTrace();
+		        return null;
+		    }
+		}
+		
 		// create the temporary file
 		File tempFile;
 		try {
@@ -169,9 +478,14 @@ public class S3FeedStorer implements FeedStorer {
 	 * @param feedId
 	 */
 	public void releaseFeed (String feedId) {
-	    if (tempFiles.containsKey(feedId)) {
-	        tempFiles.get(feedId).delete();
-	        tempFiles.remove(feedId);
+	    if (cache != null) {
+	        cache.unpin(feedId);
+	        return;
+	    }
+	    
+	    File tempFile = tempFiles.remove(feedId);
+	    if (tempFile != null) {
+	        tempFile.delete();
 	    }
 	}
 	
@@ -208,6 +522,9 @@ public class S3FeedStorer implements FeedStorer {
 	    // even if object doesn't exist, will not throw error; only throws error when there is some
 	    // sort of communications hiccup
 	    s3Client.deleteObject(this.bucket, id);
+	    
+	    if (cache != null)
+	        cache.invalidate(id);
 	}
 	
 	public String toString () {
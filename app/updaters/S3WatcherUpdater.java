@@ -113,7 +113,7 @@ public class S3WatcherUpdater implements Updater {
 
             File gtfs = storer.getFeed(feedId);
             try {
-                FeedStatsCalculator stats = new FeedStatsCalculator(gtfs);
+                FeedStatsCalculator stats = FeedStatsCache.getStats(gtfs);
                 stats.applyExtended(feed);
                 feed.status = FeedParseStatus.SUCCESSFUL;
             } catch (Exception e) {
@@ -139,6 +139,7 @@ public class S3WatcherUpdater implements Updater {
             }
 
             feed.save();
+            feed.updateAgencyGeoms();
         }
         
         return changed;
@@ -147,4 +148,8 @@ public class S3WatcherUpdater implements Updater {
     private String buildS3Url (String filename) {
         return "S3Watcher:" + this.bucket + ":" + filename;
     }
+    
+    public String toString () {
+        return "S3WatcherUpdater for bucket " + bucket;
+    }
 }
@@ -0,0 +1,225 @@
+/*
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package updaters;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.ServiceCalendar;
+import org.onebusaway.gtfs.model.ServiceCalendarDate;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+
+/**
+ * Evaluates calendar.txt and calendar_dates.txt as one bitset of active days per service ID.
+ * Days are numbered from 1970-01-01, and bit 0 of every bitset is the earliest date that appears
+ * anywhere in the calendars. calendar_dates.txt removals are applied before additions, so a
+ * date that is both added and removed is active.
+ *
+ * @author mattwigway
+ */
+public class ServiceCalendarIndex {
+    private Map<AgencyAndId, BitSet> services;
+
+    /** The day index of bit 0 */
+    private int baseDay;
+
+    /** The days on which any service is active */
+    private BitSet active;
+
+    public ServiceCalendarIndex (Collection<ServiceCalendar> calendars,
+            Collection<ServiceCalendarDate> calendarDates) {
+        services = new HashMap<AgencyAndId, BitSet>();
+        active = new BitSet();
+
+        baseDay = Integer.MAX_VALUE;
+        for (ServiceCalendar cal : calendars) {
+            baseDay = Math.min(baseDay, toDayIndex(cal.getStartDate()));
+        }
+        for (ServiceCalendarDate date : calendarDates) {
+            baseDay = Math.min(baseDay, toDayIndex(date.getDate()));
+        }
+
+        // no service at all
+        if (baseDay == Integer.MAX_VALUE)
+            return;
+
+        int start, end, day;
+        BitSet bits;
+        for (ServiceCalendar cal : calendars) {
+            start = toDayIndex(cal.getStartDate());
+            end = toDayIndex(cal.getEndDate());
+
+            // as in GtfsDaoImpl, a later definition of the same service replaces an earlier one;
+            // a service that ends before it starts is never active, and may end before bit 0
+            bits = new BitSet(Math.max(end - baseDay + 1, 0));
+            services.put(cal.getServiceId(), bits);
+
+            for (day = start; day <= end; day++) {
+                if (runsOnDayOfWeek(cal, day))
+                    bits.set(day - baseDay);
+            }
+        }
+
+        for (ServiceCalendarDate date : calendarDates) {
+            if (date.getExceptionType() != ServiceCalendarDate.EXCEPTION_TYPE_REMOVE)
+                continue;
+
+            bits = services.get(date.getServiceId());
+            if (bits != null)
+                bits.clear(toDayIndex(date.getDate()) - baseDay);
+        }
+
+        for (ServiceCalendarDate date : calendarDates) {
+            if (date.getExceptionType() != ServiceCalendarDate.EXCEPTION_TYPE_ADD)
+                continue;
+
+            bits = services.get(date.getServiceId());
+            if (bits == null) {
+                bits = new BitSet();
+                services.put(date.getServiceId(), bits);
+            }
+            bits.set(toDayIndex(date.getDate()) - baseDay);
+        }
+
+        for (BitSet service : services.values()) {
+            active.or(service);
+        }
+    }
+
+    /**
+     * Is there any active service at all?
+     */
+    public boolean hasService () {
+        return !active.isEmpty();
+    }
+
+    /**
+     * Get the first date on which any service runs, or null if there is no service.
+     */
+    public ServiceDate getFirstActiveDate () {
+        if (active.isEmpty())
+            return null;
+
+        return fromDayIndex(baseDay + active.nextSetBit(0));
+    }
+
+    /**
+     * Get the last date on which any service runs, or null if there is no service.
+     */
+    public ServiceDate getLastActiveDate () {
+        if (active.isEmpty())
+            return null;
+
+        // length() is the index of the highest set bit plus one
+        return fromDayIndex(baseDay + active.length() - 1);
+    }
+
+    /**
+     * Get the number of services active on each day from the first active date through the last
+     * active date, inclusive; element 0 is the first active date.
+     */
+    public int[] getActiveServiceCounts () {
+        if (active.isEmpty())
+            return new int[0];
+
+        int first = active.nextSetBit(0);
+        int last = active.length() - 1;
+        int[] counts = new int[last - first + 1];
+
+        for (BitSet service : services.values()) {
+            for (int i = service.nextSetBit(first); i >= 0 && i <= last; i = service.nextSetBit(i + 1)) {
+                counts[i - first]++;
+            }
+        }
+
+        return counts;
+    }
+
+    /**
+     * Get the number of services active on the given date.
+     */
+    public int getActiveServiceCount (ServiceDate date) {
+        int idx = toDayIndex(date) - baseDay;
+
+        if (idx < 0 || !active.get(idx))
+            return 0;
+
+        int count = 0;
+        for (BitSet service : services.values()) {
+            if (service.get(idx))
+                count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Does the given calendar run on the day of the week of the given day index?
+     */
+    private static boolean runsOnDayOfWeek (ServiceCalendar cal, int day) {
+        // 1970-01-01 was a Thursday; 0 is Monday
+        switch (((day + 3) % 7 + 7) % 7) {
+            case 0: return cal.getMonday() == 1;
+            case 1: return cal.getTuesday() == 1;
+            case 2: return cal.getWednesday() == 1;
+            case 3: return cal.getThursday() == 1;
+            case 4: return cal.getFriday() == 1;
+            case 5: return cal.getSaturday() == 1;
+            case 6: return cal.getSunday() == 1;
+        }
+        return false;
+    }
+
+    /**
+     * Convert a date to the number of days since 1970-01-01. Pure arithmetic, so it is
+     * independent of time zones and does not allocate.
+     * See http://howardhinnant.github.io/date_algorithms.html
+     */
+    public static int toDayIndex (ServiceDate date) {
+        int y = date.getYear();
+        int m = date.getMonth();
+        int d = date.getDay();
+
+        if (m <= 2)
+            y -= 1;
+
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yoe = y - era * 400;
+        int doy = (153 * (m > 2 ? m - 3 : m + 9) + 2) / 5 + d - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    /**
+     * Convert a number of days since 1970-01-01 back to a date.
+     */
+    public static ServiceDate fromDayIndex (int day) {
+        int z = day + 719468;
+        int era = (z >= 0 ? z : z - 146096) / 146097;
+        int doe = z - era * 146097;
+        int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        int mp = (5 * doy + 2) / 153;
+        int d = doy - (153 * mp + 2) / 5 + 1;
+        int m = mp < 10 ? mp + 3 : mp - 9;
+        int y = yoe + era * 400 + (m <= 2 ? 1 : 0);
+
+        return new ServiceDate(y, m, d);
+    }
+}
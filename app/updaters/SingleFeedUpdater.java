@@ -10,8 +10,6 @@ import java.util.Set;
 
 import play.Logger;
 import play.db.jpa.JPA;
-import play.libs.WS;
-import play.libs.WS.HttpResponse;
 
 import lombok.Data;
 import lombok.Getter;
@@ -64,18 +62,24 @@ public class SingleFeedUpdater implements Updater {
         }
 
         // determine if it needs to be downloaded
-        HttpResponse modifiedRes = WS.url(downloadUrl).head();
-        if (!modifiedRes.success()) {
+        ConditionalFetcher.Fetch fetch = ConditionalFetcher.head(downloadUrl);
+        if (!fetch.success()) {
             Logger.error("Error fetching %s", downloadUrl);
             return changed;
         }    
 
-        String modifiedRaw = modifiedRes.getHeader("Last-Modified");
+        if (fetch.notModified()) {
+            Logger.info("Feed %s not modified", downloadUrl);
+            return changed;
+        }
+
+        String modifiedRaw = fetch.getLastModified();
         Date modified;
         if (modifiedRaw == null) {
-            Logger.warn(
-                    "Server at %s sends no Last-Modified header; feed will always be redownloaded",
-                    downloadUrl);
+            if (!fetch.hasValidators())
+                Logger.warn(
+                        "Server at %s sends no Last-Modified or ETag header; feed will always be redownloaded",
+                        downloadUrl);
             downloadFeed = true;
             modified = new Date();
         }
@@ -91,13 +95,30 @@ public class SingleFeedUpdater implements Updater {
                 return changed;
             }
 
-            if (original != null && modified.compareTo(original.dateUpdated) > 0) {
+            if (original != null && !fetch.hasPrevious()) {
+                // no validators saved yet, fall back to comparing dates
+                downloadFeed = modified.compareTo(original.dateUpdated) > 0;
+            }
+            else {
                 downloadFeed = true;
             }
         }
 
+        if (!downloadFeed) {
+            // save the validators so that the next check can be conditional
+            fetch.processed();
+        }
+
         if (downloadFeed) {
             String feedId = storer.storeFeed(downloadUrl);
+
+            // with a content-addressed storer, the same ID means the same bytes
+            if (original != null && feedId != null && feedId.equals(original.storedId)) {
+                Logger.info("Feed %s has not changed", downloadUrl);
+                fetch.processed();
+                return changed;
+            }
+
             File feedData = storer.getFeed(feedId);
             feed.storedId = feedId;
             FeedStatsCalculator stats;
@@ -105,7 +126,7 @@ public class SingleFeedUpdater implements Updater {
             feed.downloadUrl = this.downloadUrl;
 
             try {
-                stats = new FeedStatsCalculator(feedData);
+                stats = FeedStatsCache.getStats(feedData);
                 stats.applyExtended(feed);
             } catch (Exception e) {
                 feed.status = FeedParseStatus.FAILED;
@@ -132,14 +153,21 @@ public class SingleFeedUpdater implements Updater {
                 feed.review = ReviewType.NO_AGENCY;
 
             feed.save();
+            feed.updateAgencyGeoms();
 
             for (NtdAgency agency : feed.getEnabledAgencies()) {
                 for (MetroArea area : agency.getEnabledMetroAreas()) {
                     changed.add(area);
                 }
             }
+
+            fetch.processed();
         }
 
         return changed;
     }
+    
+    public String toString () {
+        return "SingleFeedUpdater for " + downloadUrl;
+    }
 }
@@ -15,12 +15,25 @@
 
 package updaters;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import play.Logger;
 import play.db.jpa.JPA;
+import play.db.jpa.JPAPlugin;
 
 import lombok.Data;
 import models.MetroArea;
@@ -68,29 +81,279 @@ public class UpdaterFactory {
         this.storer = storer;
     }
 
+    /**
+     * @param parallel if true, run the updaters at the same time, each in its own transaction
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * @param threads the number of updaters to run at once in parallel mode
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @param timeoutSeconds how long to wait for each updater in parallel mode, counted from when
+     *     it starts running rather than from when it is queued
+     */
+    public void setTimeoutSeconds(long timeoutSeconds) {
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    /**
+     * @return the timing and outcome of each updater in the last update, slowest first
+     */
+    public List<UpdaterRun> getLastRun() {
+        return lastRun;
+    }
+
     private List<Updater> updaters;
 	private List<UpdaterHook> hooks;
 	private FeedStorer storer;
+	private boolean parallel = false;
+	private int threads = 4;
+	private long timeoutSeconds = 6 * 60 * 60;
+	private List<UpdaterRun> lastRun = new ArrayList<UpdaterRun>();
 	
 	public void update () {	    
-		Set<MetroArea> metros = new HashSet<MetroArea>();
+		Set<MetroArea> metros;
+		List<UpdaterRun> runs = new ArrayList<UpdaterRun>();
 		
-		for (Updater updater : updaters) {
-		    try {
-		        metros.addAll(updater.update(storer));
-		    } catch (Exception e) {
-		        Logger.error("Updater failed: ", updater);
-		        e.printStackTrace();
+		if (parallel)
+		    metros = runParallel(runs);
+		else
+		    metros = runSequential(runs);
+		
+		// make it obvious which source is slowest
+		Collections.sort(runs, new Comparator<UpdaterRun>() {
+		    public int compare(UpdaterRun a, UpdaterRun b) {
+		        return a.millis > b.millis ? -1 : a.millis < b.millis ? 1 : 0;
 		    }
+		});
+		
+		for (UpdaterRun run : runs) {
+		    Logger.info("Updater %s: %s in %s ms, %s metro areas changed", run.updater, run.outcome,
+		            run.millis, run.metrosChanged);
 		}
 		
+		lastRun = runs;
+		
 		for (UpdaterHook hook : hooks) {
 		    try {
 		        hook.update(metros);
 		    } catch (Exception e) {
-		        Logger.error("Hook failed: ", hook);
+		        Logger.error("Hook failed: %s", hook);
 		        e.printStackTrace();
 		    }
 		}
 	}
+	
+	private Set<MetroArea> runSequential (List<UpdaterRun> runs) {
+	    Set<MetroArea> metros = new HashSet<MetroArea>();
+	    
+	    for (Updater updater : updaters) {
+	        UpdaterRun run = new UpdaterRun(updater.toString());
+	        long start = System.currentTimeMillis();
+	        
+	        try {
+	            run.finish(updater.update(storer), start);
+	            if (run.changed != null)
+	                metros.addAll(run.changed);
+	        } catch (Exception e) {
+	            Logger.error("Updater failed: %s", updater);
+	            e.printStackTrace();
+	            run.fail(start);
+	        }
+	        
+	        runs.add(run);
+	    }
+	    
+	    return metros;
+	}
+	
+	/**
+	 * Run all the updaters at once. Each runs in its own transaction, which is committed before
+	 * the hooks run; the changed metro areas are then reloaded in this thread's transaction.
+	 */
+	private Set<MetroArea> runParallel (List<UpdaterRun> runs) {
+	    ExecutorService executor = Executors.newFixedThreadPool(threads);
+	    List<Future<UpdaterRun>> futures = new ArrayList<Future<UpdaterRun>>();
+	    // set by whichever comes first: the updater, before it commits, or this thread, when it
+	    // gives up on the updater; an updater that has been given up on rolls back
+	    List<AtomicBoolean> settled = new ArrayList<AtomicBoolean>();
+	    // when each updater started running, or 0 while it is queued behind the others
+	    List<AtomicLong> started = new ArrayList<AtomicLong>();
+	    Set<Long> metroIds = new HashSet<Long>();
+	    long start = System.currentTimeMillis();
+	    
+	    try {
+	        for (final Updater updater : updaters) {
+	            final AtomicBoolean updaterSettled = new AtomicBoolean(false);
+	            settled.add(updaterSettled);
+	            final AtomicLong updaterStarted = new AtomicLong(0);
+	            started.add(updaterStarted);
+	            
+	            futures.add(executor.submit(new Callable<UpdaterRun>() {
+	                public UpdaterRun call() {
+	                    UpdaterRun run = new UpdaterRun(updater.toString());
+	                    long updaterStart = System.currentTimeMillis();
+	                    updaterStarted.set(updaterStart);
+	                    boolean rollback = true;
+	                    
+	                    JPAPlugin.startTx(false);
+	                    try {
+	                        run.finish(updater.update(storer), updaterStart);
+	                        
+	                        if (updaterSettled.compareAndSet(false, true))
+	                            rollback = false;
+	                        else
+	                            Logger.error("Rolling back updater that timed out: %s", updater);
+	                    } catch (Exception e) {
+	                        Logger.error("Updater failed: %s", updater);
+	                        e.printStackTrace();
+	                        run.fail(updaterStart);
+	                    } finally {
+	                        JPAPlugin.closeTx(rollback);
+	                    }
+	                    
+	                    return run;
+	                }
+	            }));
+	        }
+	        
+	        // enough time for every updater to use its whole timeout, even one thread at a time
+	        long queuedDeadline = start + timeoutSeconds * 1000 * updaters.size();
+	        
+	        for (int i = 0; i < updaters.size(); i++) {
+	            Updater updater = updaters.get(i);
+	            Future<UpdaterRun> future = futures.get(i);
+	            UpdaterRun run;
+	            
+	            try {
+	                try {
+	                    run = await(future, started.get(i), queuedDeadline);
+	                } catch (TimeoutException e) {
+	                    if (settled.get(i).compareAndSet(false, true))
+	                        throw e;
+	                    
+	                    // it finished just in time and is committing, so wait for that
+	                    run = future.get();
+	                }
+	                
+	                if (run.changed != null) {
+	                    for (MetroArea metro : run.changed) {
+	                        metroIds.add(metro.id);
+	                    }
+	                }
+	            } catch (TimeoutException e) {
+	                Logger.error("Updater timed out after %s seconds: %s", timeoutSeconds, updater);
+	                future.cancel(true);
+	                run = new UpdaterRun(updater.toString());
+	                run.timeOut(started.get(i).get() != 0 ? started.get(i).get() : start);
+	            } catch (ExecutionException e) {
+	                // call() catches exceptions from the updater, so this should not happen
+	                Logger.error("Updater failed: %s", updater);
+	                e.getCause().printStackTrace();
+	                run = new UpdaterRun(updater.toString());
+	                run.fail(start);
+	            } catch (InterruptedException e) {
+	                Logger.error("Interrupted while waiting for updater %s", updater);
+	                settled.get(i).set(true);
+	                future.cancel(true);
+	                run = new UpdaterRun(updater.toString());
+	                run.fail(start);
+	                Thread.currentThread().interrupt();
+	            }
+	            
+	            runs.add(run);
+	        }
+	    } finally {
+	        executor.shutdownNow();
+	    }
+	    
+	    // the updaters' copies belong to their own, now closed, transactions
+	    Set<MetroArea> metros = new HashSet<MetroArea>();
+	    for (Long id : metroIds) {
+	        MetroArea metro = MetroArea.findById(id);
+	        if (metro != null)
+	            metros.add(metro);
+	    }
+	    
+	    return metros;
+	}
+	
+	/**
+	 * Wait for an updater until timeoutSeconds after it started running. An updater still queued
+	 * behind others is waited for until it starts, since those others have timeouts of their own,
+	 * but not past queuedDeadline, in case one of them ignores being cancelled.
+	 */
+	private UpdaterRun await (Future<UpdaterRun> future, AtomicLong started, long queuedDeadline)
+	        throws InterruptedException, ExecutionException, TimeoutException {
+	    while (true) {
+	        long startedAt = started.get();
+	        
+	        if (startedAt == 0) {
+	            if (System.currentTimeMillis() >= queuedDeadline)
+	                throw new TimeoutException();
+	            
+	            try {
+	                return future.get(1, TimeUnit.SECONDS);
+	            } catch (TimeoutException e) {
+	                continue;
+	            }
+	        }
+	        
+	        return future.get(Math.max(0, startedAt + timeoutSeconds * 1000 - System.currentTimeMillis()),
+	                TimeUnit.MILLISECONDS);
+	    }
+	}
+	
+	/**
+	 * The timing and outcome of one updater in one update.
+	 */
+	public static class UpdaterRun {
+	    public static enum Outcome {
+	        SUCCEEDED, FAILED, TIMED_OUT;
+	    }
+	    
+	    public String updater;
+	    public Outcome outcome;
+	    
+	    /** How long the updater ran, or how long it was waited for if it timed out */
+	    public long millis;
+	    
+	    public int metrosChanged;
+	    
+	    /** The metro areas the updater changed; not shown in the admin interface */
+	    transient Set<MetroArea> changed;
+	    
+	    public UpdaterRun (String updater) {
+	        this.updater = updater;
+	        this.metrosChanged = 0;
+	        this.changed = null;
+	    }
+	    
+	    /**
+	     * Record a finished updater. Updaters return null when they fail without an exception.
+	     */
+	    public void finish (Set<MetroArea> changed, long start) {
+	        this.millis = System.currentTimeMillis() - start;
+	        this.changed = changed;
+	        this.outcome = changed != null ? Outcome.SUCCEEDED : Outcome.FAILED;
+	        this.metrosChanged = changed != null ? changed.size() : 0;
+	    }
+	    
+	    public void fail (long start) {
+	        this.millis = System.currentTimeMillis() - start;
+	        this.outcome = Outcome.FAILED;
+	    }
+	    
+	    public void timeOut (long start) {
+	        this.millis = System.currentTimeMillis() - start;
+	        this.outcome = Outcome.TIMED_OUT;
+	    }
+	}
 }
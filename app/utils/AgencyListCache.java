@@ -0,0 +1,181 @@
+/*
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package utils;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+import javax.persistence.Query;
+
+import play.Play;
+import play.db.jpa.JPA;
+import proxies.NtdAgencyProxy;
+
+/**
+ * The agency list served by NtdAgencies.agencies, rendered as JSON and CSV. Building it is an
+ * expensive spatial query, so it is kept until an agency, metro or feed is saved or deleted.
+ *
+ * Entity listeners run before the transaction commits, so a list built by another request at just
+ * that moment can miss the change; the list is also rebuilt once it is
+ * dashboard.agencies_cache_seconds old, which bounds that, and covers changes made with native SQL.
+ *
+ * @author mattwigway
+ */
+public class AgencyListCache {
+    private static volatile Rendering current = null;
+
+    /** Incremented on every invalidation, so a list built before one is not kept after it */
+    private static AtomicLong generation = new AtomicLong(0);
+
+    private static Object lock = new Object();
+
+    /**
+     * Get the agency list, building it if necessary. Must be called in a JPA transaction.
+     */
+    public static Rendering get () {
+        Rendering ret = current;
+
+        if (ret != null && !ret.isExpired())
+            return ret;
+
+        // only build it once, however many requests are waiting
+        synchronized (lock) {
+            ret = current;
+            if (ret != null && !ret.isExpired())
+                return ret;
+
+            long gen = generation.get();
+            ret = build();
+
+            if (gen == generation.get())
+                current = ret;
+
+            return ret;
+        }
+    }
+
+    /**
+     * Throw away the agency list, because something in it may have changed.
+     */
+    public static void invalidate () {
+        generation.incrementAndGet();
+        current = null;
+    }
+
+    private static Rendering build () {
+        StringWriter json = new StringWriter();
+        StringWriter csv = new StringWriter();
+        DumpWriter jsonWriter = DumpWriter.create(DataDumpFormat.JSON, json);
+        DumpWriter csvWriter = DumpWriter.create(DataDumpFormat.CSV, csv);
+        List<Object[]> results;
+
+        String qs =
+            "SELECT a.name, a.url, m.name AS metroname, a.population, a.ridership, " +
+            "a.passengerMiles, " +
+            "CASE "+
+            "  WHEN f.publicGtfs THEN true " +
+            "  ELSE false " +
+            "END AS publicGtfs, " +
+            "googleGtfs, m.source AS metrosource, " +
+            "Y(ST_Transform(ST_Centroid(m.the_geom), 4326)) AS lat," +
+            "X(ST_Transform(ST_Centroid(m.the_geom), 4326)) AS lon, " +
+            "a.id " +
+            "FROM (NtdAgency a " +
+            "  LEFT JOIN (SELECT mn.agencies_id AS id, min(m.name) AS name, bool_and(m.disabled) AS disabled, min(m.source) AS source, ST_Union(m.the_geom) AS the_geom FROM MetroArea_NtdAgency mn LEFT JOIN MetroArea m ON (mn.metroarea_id = m.id) GROUP BY mn.agencies_id) m " +
+            "    ON (m.id = a.id))" +
+            "  LEFT JOIN (SELECT j.NtdAgency_id, count(*) > 0 AS publicGtfs " +
+            "               FROM NtdAgency_GtfsFeed j " +
+            "             GROUP BY j.NtdAgency_id) f ON (a.id = f.NtdAgency_id) " +
+            // if any are enabled, show this agency
+            "WHERE m.disabled = false AND a.disabled = false;";
+
+        Query q = JPA.em().createNativeQuery(qs);
+
+        results = q.getResultList();
+
+        try {
+            for (Object[] result : results) {
+                NtdAgencyProxy agency = new NtdAgencyProxy(
+                    (String) result[0], // name
+                    (String) result[1], // url
+                    (String) result[2], // Metro name
+                    ((Integer) result[3]).intValue(), // population
+                    ((Integer) result[4]).intValue(), // ridership
+                    ((Integer) result[5]).intValue(), // passenger miles
+                    ((Boolean) result[6]).booleanValue(), // public GTFS
+                    ((Boolean) result[7]).booleanValue(), // google GTFS
+                    (Double) result[9], // lat
+                    (Double) result[10], // lon
+                    ((BigInteger) result[11]).longValue() // id
+                    );
+
+                jsonWriter.write(agency);
+                csvWriter.write(agency);
+            }
+
+            jsonWriter.close();
+            csvWriter.close();
+        } catch (IOException e) {
+            // StringWriters don't throw IOExceptions
+            throw new RuntimeException(e);
+        }
+
+        return new Rendering(json.toString(), csv.toString());
+    }
+
+    /**
+     * The agency list in both formats, with a strong ETag for each.
+     */
+    public static class Rendering {
+        public final String json;
+        public final String jsonEtag;
+        public final String csv;
+        public final String csvEtag;
+        private final long built;
+
+        public Rendering (String json, String csv) {
+            this.json = json;
+            this.jsonEtag = "\"" + HashUtils.sha256(json) + "\"";
+            this.csv = csv;
+            this.csvEtag = "\"" + HashUtils.sha256(csv) + "\"";
+            this.built = System.currentTimeMillis();
+        }
+
+        private boolean isExpired () {
+            long maxAge = 1000L * Integer.parseInt(
+                    Play.configuration.getProperty("dashboard.agencies_cache_seconds", "600"));
+            return System.currentTimeMillis() - built > maxAge;
+        }
+    }
+
+    /**
+     * Entity listener that invalidates the agency list when an entity it is built from changes.
+     */
+    public static class Invalidator {
+        @PostPersist
+        @PostUpdate
+        @PostRemove
+        public void changed (Object entity) {
+            invalidate();
+        }
+    }
+}
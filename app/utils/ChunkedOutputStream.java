@@ -0,0 +1,77 @@
+/*
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package utils;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import play.mvc.Http;
+
+/**
+ * Sends what is written to it as HTTP chunks of about CHUNK_SIZE bytes, rather than buffering the
+ * whole response. The response headers must be set before anything is written.
+ *
+ * @author mattwigway
+ */
+public class ChunkedOutputStream extends OutputStream {
+    private static final int CHUNK_SIZE = 32 * 1024;
+
+    private Http.Response response;
+    private byte[] buf;
+    private int count;
+
+    public ChunkedOutputStream (Http.Response response) {
+        this.response = response;
+        this.buf = new byte[CHUNK_SIZE];
+        this.count = 0;
+    }
+
+    @Override
+    public void write (int b) {
+        if (count == buf.length)
+            flush();
+
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write (byte[] b, int off, int len) {
+        while (len > 0) {
+            if (count == buf.length)
+                flush();
+
+            int n = Math.min(len, buf.length - count);
+            System.arraycopy(b, off, buf, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush () {
+        if (count == 0)
+            return;
+
+        response.writeChunk(Arrays.copyOf(buf, count));
+        count = 0;
+    }
+
+    @Override
+    public void close () {
+        flush();
+    }
+}
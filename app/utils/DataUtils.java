@@ -15,35 +15,80 @@
 
 package utils;
 
-import java.io.StringWriter;
 import java.io.IOException;
-import java.util.List;
-import au.com.bytecode.opencsv.CSVWriter;
-import proxies.Proxy;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPOutputStream;
+
+import play.Play;
+import play.mvc.Http;
 
 public class DataUtils {
-    public static String encodeCsv(List<Proxy> objects) {
-        StringWriter out = new StringWriter(100000);
-        CSVWriter writer = new CSVWriter(out);
-
-        // write header
-        writer.writeNext(objects.get(0).toHeader());
-        
-        // loop and write all lines
-        for (Proxy object : objects) {
-            writer.writeNext(object.toRow());
+    /**
+     * Does the client accept gzip, and are dumps to be gzipped?
+     */
+    public static boolean useGzip (Http.Request request) {
+        if (!Boolean.parseBoolean(Play.configuration.getProperty("dashboard.gzip_dumps", "true")))
+            return false;
+
+        Http.Header accept = request.headers.get("accept-encoding");
+        if (accept == null)
+            return false;
+
+        for (String value : accept.values) {
+            if (value.contains("gzip"))
+                return true;
         }
 
-        // since there are no files involved we don't need to worry about
-        // IOExceptions.
-        try {
-            writer.close();
-        } catch (IOException e) {}
+        return false;
+    }
+
+    /**
+     * Does the request's If-None-Match header match the given ETag?
+     */
+    public static boolean etagMatches (Http.Request request, String etag) {
+        Http.Header ifNoneMatch = request.headers.get("if-none-match");
+        if (ifNoneMatch == null)
+            return false;
+
+        for (String value : ifNoneMatch.values) {
+            for (String tag : value.split(",")) {
+                if (tag.trim().equals(etag) || tag.trim().equals("*"))
+                    return true;
+            }
+        }
 
-        try {
-            out.close();
-        } catch (IOException e) {}
+        return false;
+    }
+
+    /**
+     * Set up the response for a data dump in the given format, and return a writer that streams
+     * to it in chunks, gzipped if useGzip is true. Nothing is sent until the writer is written to,
+     * so other headers can still be set. Close the writer to finish the response.
+     * @param name The file name for the download, without the extension.
+     */
+    public static Writer openDump (Http.Request request, Http.Response response,
+            DataDumpFormat format, String name) throws IOException {
+        if (format == DataDumpFormat.CSV) {
+            // http://stackoverflow.com/questions/398237
+            response.setContentTypeIfNotSet("text/csv; charset=utf-8");
+            response.setHeader("Content-Disposition", "attachment;filename=" + name + ".csv");
+        }
+        else {
+            response.setContentTypeIfNotSet("application/json; charset=utf-8");
+            response.setHeader("Content-Disposition", "attachment;filename=" + name + ".json");
+        }
+
+        response.setHeader("Vary", "Accept-Encoding");
+
+        OutputStream out = new ChunkedOutputStream(response);
+
+        if (useGzip(request)) {
+            response.setHeader("Content-Encoding", "gzip");
+            out = new GZIPOutputStream(out);
+        }
 
-        return out.toString();
+        return new OutputStreamWriter(out, "UTF-8");
     }
-}
\ No newline at end of file
+}
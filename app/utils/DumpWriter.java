@@ -0,0 +1,101 @@
+/*
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package utils;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import au.com.bytecode.opencsv.CSVWriter;
+
+import com.google.gson.Gson;
+
+import proxies.Proxy;
+
+/**
+ * Writes a data dump one row at a time, so that the whole dump never needs to be in memory.
+ *
+ * @author mattwigway
+ */
+public abstract class DumpWriter {
+    /**
+     * Create a writer for the given format. Nothing is written until the first row.
+     */
+    public static DumpWriter create (DataDumpFormat format, Writer out) {
+        if (format == DataDumpFormat.CSV)
+            return new CsvDumpWriter(out);
+        else
+            return new JsonDumpWriter(out);
+    }
+
+    public abstract void write (Proxy row) throws IOException;
+
+    /**
+     * Finish the dump and close the underlying writer.
+     */
+    public abstract void close () throws IOException;
+
+    /**
+     * CSV, with a header taken from the first row; an empty dump is empty.
+     */
+    private static class CsvDumpWriter extends DumpWriter {
+        private CSVWriter writer;
+        private boolean header;
+
+        public CsvDumpWriter (Writer out) {
+            this.writer = new CSVWriter(out);
+            this.header = false;
+        }
+
+        public void write (Proxy row) throws IOException {
+            if (!header) {
+                writer.writeNext(row.toHeader());
+                header = true;
+            }
+
+            writer.writeNext(row.toRow());
+        }
+
+        public void close () throws IOException {
+            writer.close();
+        }
+    }
+
+    /**
+     * A JSON array of the rows, the same as Gson would produce for a list of them.
+     */
+    private static class JsonDumpWriter extends DumpWriter {
+        private Writer out;
+        private Gson gson;
+        private boolean first;
+
+        public JsonDumpWriter (Writer out) {
+            this.out = out;
+            this.gson = new Gson();
+            this.first = true;
+        }
+
+        public void write (Proxy row) throws IOException {
+            out.write(first ? "[" : ",");
+            first = false;
+            gson.toJson(row, out);
+        }
+
+        public void close () throws IOException {
+            out.write(first ? "[]" : "]");
+            out.close();
+        }
+    }
+}
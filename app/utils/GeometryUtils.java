@@ -19,54 +19,94 @@
 
 package utils;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.MultiPolygon;
 import com.vividsolutions.jts.geom.Polygon;
 import com.vividsolutions.jts.geom.PrecisionModel;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKBReader;
 import com.vividsolutions.jts.io.WKTReader;
 import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.operation.overlay.OverlayOp;
 
+/**
+ * Geometry factories are immutable, so there is one per SRID, shared by all threads. WKT and WKB
+ * readers are not thread safe, so each thread has its own, per SRID.
+ */
 public class GeometryUtils {
-    private static HashMap<Integer, GeometryFactory> geomFactories = 
-        new HashMap<Integer, GeometryFactory>();
-    private static HashMap<Integer, WKTReader> wktReaders = new HashMap<Integer, WKTReader>();
+    private static ConcurrentHashMap<Integer, GeometryFactory> geomFactories = 
+        new ConcurrentHashMap<Integer, GeometryFactory>();
+    private static ThreadLocal<Map<Integer, WKTReader>> wktReaders =
+        new ThreadLocal<Map<Integer, WKTReader>> () {
+            protected Map<Integer, WKTReader> initialValue () {
+                return new HashMap<Integer, WKTReader>();
+            }
+        };
+    private static ThreadLocal<Map<Integer, WKBReader>> wkbReaders =
+        new ThreadLocal<Map<Integer, WKBReader>> () {
+            protected Map<Integer, WKBReader> initialValue () {
+                return new HashMap<Integer, WKBReader>();
+            }
+        };
     private static PrecisionModel defaultPrecisionModel = new PrecisionModel();
 
+    /** The EWKB geometry type flag for an SRID following the type */
+    private static final int EWKB_SRID_FLAG = 0x20000000;
+
     /**
      * get a geometry factory for a given SRID.
      * @param srid the srid to get a factory for
      */
     public static GeometryFactory getGeometryFactoryForSrid (int srid) {
-        Integer wrappedSrid = new Integer(srid);
+        GeometryFactory gf = geomFactories.get(srid);
 
-        if (geomFactories.containsKey(wrappedSrid)) {
-            return geomFactories.get(wrappedSrid);
-        }
-        else {
-            GeometryFactory gf = new GeometryFactory(defaultPrecisionModel, srid);
-            geomFactories.put(wrappedSrid, gf);
-            return gf;
+        if (gf == null) {
+            geomFactories.putIfAbsent(srid, new GeometryFactory(defaultPrecisionModel, srid));
+            // if another thread made one at the same time, use theirs
+            gf = geomFactories.get(srid);
         }
+
+        return gf;
     }
 
     /**
-     * get a WKTReader for a given SRID.
+     * get a WKTReader for a given SRID. It must only be used by the calling thread.
      * @param srid the srid to get a factory for
      */
     public static WKTReader getWktReaderForSrid (int srid) {
-        Integer wrappedSrid = new Integer(srid);
+        Map<Integer, WKTReader> readers = wktReaders.get();
+        WKTReader wktr = readers.get(srid);
 
-        if (wktReaders.containsKey(wrappedSrid)) {
-            return wktReaders.get(wrappedSrid);
+        if (wktr == null) {
+            wktr = new WKTReader(getGeometryFactoryForSrid(srid));
+            readers.put(srid, wktr);
         }
-        else {
-            GeometryFactory gf = getGeometryFactoryForSrid(srid);
-            WKTReader wktr = new WKTReader(gf);
-            wktReaders.put(wrappedSrid, wktr);
-            return wktr;
+
+        return wktr;
+    }
+
+    /**
+     * get a WKBReader for a given SRID. It must only be used by the calling thread.
+     * @param srid the srid to get a factory for
+     */
+    public static WKBReader getWkbReaderForSrid (int srid) {
+        Map<Integer, WKBReader> readers = wkbReaders.get();
+        WKBReader wkbr = readers.get(srid);
+
+        if (wkbr == null) {
+            wkbr = new WKBReader(getGeometryFactoryForSrid(srid));
+            readers.put(srid, wkbr);
         }
+
+        return wkbr;
     }
 
     /**
@@ -75,15 +115,50 @@ public class GeometryUtils {
      */
     // TODO: check format, audit for security (specifically in WKTReader class)
     public static Geometry parseEwkt (String ewkt) throws ParseException {
-        // parse out geometry
-        String[] geometrySplit = ewkt.split(";");
-        String[] srsSplit = geometrySplit[0].split("=");
-        // now srsSplit[1] should be the SRS ID
-        int srsId = Integer.parseInt(srsSplit[1]);
+        // parse out geometry, SRID=4326;POINT(...)
+        int semicolon = ewkt.indexOf(';');
+
+        if (!ewkt.startsWith("SRID=") || semicolon < 0)
+            throw new ParseException("No SRID in EWKT");
+
+        int srsId;
+        try {
+            srsId = Integer.parseInt(ewkt.substring(5, semicolon).trim());
+        } catch (NumberFormatException e) {
+            throw new ParseException("Invalid SRID in EWKT");
+        }
         
         WKTReader wktr = getWktReaderForSrid(srsId);
 
-        return wktr.read(geometrySplit[1]);  
+        return wktr.read(ewkt.substring(semicolon + 1));  
+    }
+
+    /**
+     * Parse a WKB or EWKB geometry, e.g. the output of ST_AsBinary or ST_AsEWKB.
+     * @param defaultSrid The SRID of the geometry if the WKB does not have one
+     */
+    public static Geometry parseWkb (byte[] wkb, int defaultSrid) throws ParseException {
+        int srid = defaultSrid;
+
+        // byte order, then the geometry type, then the SRID if the type has the flag set
+        if (wkb.length >= 9) {
+            boolean little = wkb[0] == 1;
+            if ((readInt(wkb, 1, little) & EWKB_SRID_FLAG) != 0)
+                srid = readInt(wkb, 5, little);
+        }
+
+        Geometry geom = getWkbReaderForSrid(srid).read(wkb);
+        geom.setSRID(srid);
+        return geom;
+    }
+
+    private static int readInt (byte[] bytes, int offset, boolean little) {
+        int ret = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = bytes[offset + (little ? 3 - i : i)] & 0xff;
+            ret = (ret << 8) | b;
+        }
+        return ret;
     }
 
     /**
@@ -113,5 +188,75 @@ public class GeometryUtils {
             return null;
                     
     }
+
+    /**
+     * Union many polygonal geometries at once. They are sorted from west to east and unioned in
+     * pairs, then those in pairs, and so on, so that each overlay is of two nearby geometries of
+     * about the same size rather than of an ever-growing union and the next geometry. Geometries
+     * whose envelopes do not overlap are combined without an overlay at all.
+     * @return the union, with the SRID of the first geometry, or null if there are no geometries.
+     */
+    public static Geometry cascadedUnion (Collection<? extends Geometry> geoms) {
+        List<Geometry> sorted = new ArrayList<Geometry>();
+        for (Geometry geom : geoms) {
+            if (geom != null && !geom.isEmpty())
+                sorted.add(geom);
+        }
+
+        if (sorted.isEmpty())
+            return null;
+
+        int srid = sorted.get(0).getSRID();
+
+        Collections.sort(sorted, new Comparator<Geometry> () {
+            public int compare (Geometry a, Geometry b) {
+                return Double.compare(a.getEnvelopeInternal().getMinX(),
+                        b.getEnvelopeInternal().getMinX());
+            }
+        });
+
+        Geometry out = union(sorted, 0, sorted.size());
+        // overlays lose the SRID
+        out.setSRID(srid);
+        return out;
+    }
+
+    /**
+     * Union the geometries from start (inclusive) to end (exclusive).
+     */
+    private static Geometry union (List<Geometry> geoms, int start, int end) {
+        if (end - start == 1)
+            return geoms.get(start);
+
+        int mid = (start + end) >>> 1;
+        Geometry a = union(geoms, start, mid);
+        Geometry b = union(geoms, mid, end);
+
+        if (!a.getEnvelopeInternal().intersects(b.getEnvelopeInternal())) {
+            Geometry combined = combine(a, b);
+            if (combined != null)
+                return combined;
+        }
+
+        return OverlayOp.overlayOp(a, b, OverlayOp.UNION);
+    }
+
+    /**
+     * Combine the polygons of two disjoint geometries into one multipolygon.
+     * @return the multipolygon, or null if either geometry has parts that are not polygons.
+     */
+    private static MultiPolygon combine (Geometry a, Geometry b) {
+        List<Polygon> polygons = new ArrayList<Polygon>();
+
+        for (Geometry geom : new Geometry[] {a, b}) {
+            for (int i = 0; i < geom.getNumGeometries(); i++) {
+                if (!(geom.getGeometryN(i) instanceof Polygon))
+                    return null;
+
+                polygons.add((Polygon) geom.getGeometryN(i));
+            }
+        }
+
+        return a.getFactory().createMultiPolygon(polygons.toArray(new Polygon[polygons.size()]));
+    }
 }
-            
\ No newline at end of file
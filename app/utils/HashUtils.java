@@ -0,0 +1,80 @@
+/* 
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+*/
+
+package utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class HashUtils {
+    /**
+     * Get a new SHA-256 digest. Every JVM is required to support SHA-256, so this does not throw.
+     */
+    public static MessageDigest newSha256 () {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("JVM does not support SHA-256", e);
+        }
+    }
+    
+    /**
+     * Get the hex-encoded SHA-256 of the contents of a file.
+     */
+    public static String sha256 (File file) throws IOException {
+        MessageDigest digest = newSha256();
+        InputStream in = new FileInputStream(file);
+        byte[] buf = new byte[64 * 1024];
+        int read;
+        
+        try {
+            while ((read = in.read(buf)) != -1) {
+                digest.update(buf, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        
+        return toHex(digest.digest());
+    }
+    
+    /**
+     * Get the hex-encoded SHA-256 of the UTF-8 encoding of a string.
+     */
+    public static String sha256 (String str) {
+        try {
+            return toHex(newSha256().digest(str.getBytes("UTF-8")));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("JVM does not support UTF-8", e);
+        }
+    }
+    
+    /**
+     * Encode bytes as lowercase hex.
+     */
+    public static String toHex (byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
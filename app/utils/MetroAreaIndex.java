@@ -0,0 +1,204 @@
+/*
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+
+import com.vividsolutions.jts.algorithm.MCPointInRing;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+import play.Play;
+import play.db.jpa.JPA;
+
+/**
+ * An in-memory spatial index of the enabled metro areas, for finding the metro a point is in
+ * without a database query. It is rebuilt when a metro area is saved or deleted, or once it is
+ * dashboard.metro_index_seconds old, for the same reasons as the AgencyListCache.
+ *
+ * Each polygon is in an STRtree by its envelope, and its rings have monotone chain indices, so a
+ * lookup only tests the few edges near the point. Points on the boundary of a metro may or may not
+ * be found in it; they are not within it as far as PostGIS is concerned.
+ *
+ * @author mattwigway
+ */
+public class MetroAreaIndex {
+    private static volatile Index current = null;
+
+    private static AtomicLong generation = new AtomicLong(0);
+
+    private static Object lock = new Object();
+
+    /**
+     * Find the ID of an enabled metro area containing the given point (in WGS84 coordinates). If
+     * metros overlap, the one with the lowest ID is returned. Must be called in a JPA transaction.
+     * @return the ID, or null if the point is not in a metro area.
+     */
+    public static Long find (double lat, double lon) {
+        return get().find(new Coordinate(lon, lat));
+    }
+
+    /**
+     * Find the metro areas containing many points at once (x is longitude, y latitude). Must be
+     * called in a JPA transaction.
+     * @return the metro ID for each point, or null where a point is not in a metro area.
+     */
+    public static Long[] find (Coordinate[] points) {
+        Index index = get();
+        Long[] ret = new Long[points.length];
+
+        for (int i = 0; i < points.length; i++) {
+            ret[i] = index.find(points[i]);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Get the number of polygons in the index.
+     */
+    public static int size () {
+        return get().size;
+    }
+
+    /**
+     * Throw away the index, because a metro area may have changed.
+     */
+    public static void invalidate () {
+        generation.incrementAndGet();
+        current = null;
+    }
+
+    private static Index get () {
+        Index ret = current;
+
+        if (ret != null && !ret.isExpired())
+            return ret;
+
+        synchronized (lock) {
+            ret = current;
+            if (ret != null && !ret.isExpired())
+                return ret;
+
+            long gen = generation.get();
+            ret = new Index(JPA.em().createQuery(
+                    "SELECT m.id, m.the_geom FROM MetroArea m " +
+                    "WHERE m.disabled = false AND m.the_geom IS NOT NULL")
+                    .getResultList());
+
+            if (gen == generation.get())
+                current = ret;
+
+            return ret;
+        }
+    }
+
+    private static class Index {
+        private STRtree tree;
+        private int size;
+        private long built;
+
+        public Index (List<Object[]> metros) {
+            tree = new STRtree();
+            size = 0;
+
+            for (Object[] metro : metros) {
+                Long id = (Long) metro[0];
+                Geometry geom = (Geometry) metro[1];
+
+                for (int i = 0; i < geom.getNumGeometries(); i++) {
+                    Polygon poly = (Polygon) geom.getGeometryN(i);
+                    tree.insert(poly.getEnvelopeInternal(), new IndexedPolygon(id, poly));
+                    size++;
+                }
+            }
+
+            // build it now; an STRtree builds itself on the first query, which is not thread safe
+            tree.build();
+            built = System.currentTimeMillis();
+        }
+
+        public Long find (Coordinate point) {
+            Long ret = null;
+
+            for (Object item : tree.query(new Envelope(point))) {
+                IndexedPolygon poly = (IndexedPolygon) item;
+
+                if ((ret == null || poly.metroId < ret) && poly.contains(point))
+                    ret = poly.metroId;
+            }
+
+            return ret;
+        }
+
+        private boolean isExpired () {
+            long maxAge = 1000L * Integer.parseInt(
+                    Play.configuration.getProperty("dashboard.metro_index_seconds", "600"));
+            return System.currentTimeMillis() - built > maxAge;
+        }
+    }
+
+    private static class IndexedPolygon {
+        public final long metroId;
+        private MCPointInRing shell;
+        private List<MCPointInRing> holes;
+
+        public IndexedPolygon (long metroId, Polygon poly) {
+            this.metroId = metroId;
+            this.shell = new MCPointInRing((LinearRing) poly.getExteriorRing());
+            this.holes = new ArrayList<MCPointInRing>();
+
+            for (int i = 0; i < poly.getNumInteriorRing(); i++) {
+                holes.add(new MCPointInRing((LinearRing) poly.getInteriorRingN(i)));
+            }
+        }
+
+        /** MCPointInRing counts crossings in a field, so only one thread can use it at once */
+        public synchronized boolean contains (Coordinate point) {
+            if (!shell.isInside(point))
+                return false;
+
+            for (MCPointInRing hole : holes) {
+                if (hole.isInside(point))
+                    return false;
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Entity listener that invalidates the index when a metro area changes.
+     */
+    public static class Invalidator {
+        @PostPersist
+        @PostUpdate
+        @PostRemove
+        public void changed (Object entity) {
+            invalidate();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+
+import org.hibernate.SQLQuery;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+
+import com.google.gson.Gson;
+
+import play.Play;
+import play.db.jpa.JPA;
+
+/**
+ * The metro areas as a GeoJSON FeatureCollection, simplified for each zoom level and kept until a
+ * metro area is saved or deleted, or for at most dashboard.metro_layer_cache_seconds.
+ *
+ * A zoom level is simplified with a tolerance of one 256-pixel web map tile pixel at the equator;
+ * tolerances are snapped to the nearest zoom level, so there is a bounded number of layers.
+ *
+ * @author mattwigway
+ */
+public class MetroLayerCache {
+    public static final int MAX_ZOOM = 20;
+
+    /** Layers by zoom level; FULL_RESOLUTION is not simplified */
+    private static ConcurrentHashMap<Integer, Layer> layers = new ConcurrentHashMap<Integer, Layer>();
+    private static final int FULL_RESOLUTION = -1;
+
+    private static AtomicLong generation = new AtomicLong(0);
+
+    /**
+     * Get the metro layer at the given zoom level, or unsimplified if zoom is null. Must be called
+     * in a JPA transaction.
+     */
+    public static Layer get (Integer zoom) {
+        int key = zoom == null ? FULL_RESOLUTION : Math.max(0, Math.min(zoom, MAX_ZOOM));
+        Layer layer = layers.get(key);
+
+        if (layer != null && !layer.isExpired())
+            return layer;
+
+        long gen = generation.get();
+        layer = build(key == FULL_RESOLUTION ? null : getTolerance(key));
+
+        if (gen == generation.get())
+            layers.put(key, layer);
+
+        return layer;
+    }
+
+    /**
+     * Get the zoom level whose tolerance is closest to the given tolerance, in degrees.
+     */
+    public static int getZoom (double tolerance) {
+        if (tolerance <= 0)
+            return MAX_ZOOM;
+
+        long zoom = Math.round(Math.log(getTolerance(0) / tolerance) / Math.log(2));
+        return (int) Math.max(0, Math.min(zoom, MAX_ZOOM));
+    }
+
+    /**
+     * Get the simplification tolerance for a zoom level, in degrees: the size of a pixel.
+     */
+    public static double getTolerance (int zoom) {
+        return 360.0 / (256 * Math.pow(2, zoom));
+    }
+
+    public static void invalidate () {
+        generation.incrementAndGet();
+        layers.clear();
+    }
+
+    private static Layer build (Double tolerance) {
+        // max decimal places 6 (per demory), include GeoJSON short CRS (2)
+        String geom = tolerance != null ?
+                "ST_SimplifyPreserveTopology(m.the_geom, ?)" : "m.the_geom";
+        Session session = (Session) JPA.em().getDelegate();
+        SQLQuery query = session.createSQLQuery("SELECT m.name, ST_AsGeoJSON(" + geom + ", 6, 2) " +
+                "FROM MetroArea m");
+        if (tolerance != null)
+            query.setDouble(0, tolerance);
+        query.setFetchSize(100);
+        ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY);
+
+        Gson gson = new Gson();
+        StringBuilder out = new StringBuilder(1024 * 1024);
+        out.append("{\"type\": \"FeatureCollection\", \"features\": [");
+        boolean first = true;
+
+        try {
+            while (results.next()) {
+                if (!first)
+                    out.append(',');
+                first = false;
+
+                out.append("{\"properties\": {\"name\": ");
+                out.append(gson.toJson((String) results.get(0)));
+                out.append("}, \"geometry\": ");
+                String geoJson = (String) results.get(1);
+                out.append(geoJson != null ? geoJson : "null");
+                out.append(", \"type\": \"Feature\"}");
+            }
+        } finally {
+            results.close();
+        }
+
+        out.append("]}");
+        return new Layer(out.toString());
+    }
+
+    /**
+     * The FeatureCollection for one zoom level, with a strong ETag.
+     */
+    public static class Layer {
+        public final String json;
+        public final String etag;
+        private final long built;
+
+        public Layer (String json) {
+            this.json = json;
+            this.etag = "\"" + HashUtils.sha256(json) + "\"";
+            this.built = System.currentTimeMillis();
+        }
+
+        private boolean isExpired () {
+            long maxAge = 1000L * Integer.parseInt(
+                    Play.configuration.getProperty("dashboard.metro_layer_cache_seconds", "600"));
+            return System.currentTimeMillis() - built > maxAge;
+        }
+    }
+
+    /**
+     * Entity listener that invalidates the layers when a metro area changes.
+     */
+    public static class Invalidator {
+        @PostPersist
+        @PostUpdate
+        @PostRemove
+        public void changed (Object entity) {
+            invalidate();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package utils;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.Query;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKBWriter;
+
+import play.db.jpa.JPA;
+
+/**
+ * Queries that find the metro areas near a JTS geometry. The geometry is sent as WKB rather than
+ * WKT, which is a fraction of the size and does not need to be parsed as text on the server, and
+ * it is transformed to the SRID of the metro areas (WGS84) once per query rather than once per
+ * metro.
+ *
+ * The SQL for a given query is always the same, so it can be reused by the connection pool's
+ * statement cache, and a query can be run for many geometries by setting the geometry again.
+ *
+ * @author mattwigway
+ */
+public class SpatialQueries {
+    /** Metro areas within this many degrees of a geometry are near it */
+    public static final double NEAR_DEGREES = 0.04;
+
+    /**
+     * Create a query for the metro areas (m) near a geometry; set the geometry with setGeometry
+     * before running it.
+     * @param select The columns to select, e.g. m.id
+     * @param condition An additional condition on the metro areas, or null.
+     */
+    public static Query createNearMetrosQuery (String select, String condition) {
+        return JPA.em().createNativeQuery(
+                "SELECT " + select + " " +
+                "FROM MetroArea m, (SELECT ST_Transform(ST_GeomFromWKB(?, ?), 4326) AS geom) g " +
+                "WHERE " + (condition != null ? condition + " AND " : "") +
+                "ST_DWithin(m.the_geom, g.geom, " + NEAR_DEGREES + ")");
+    }
+
+    /**
+     * Set the geometry of a query created by createNearMetrosQuery.
+     */
+    public static void setGeometry (Query query, Geometry geom) {
+        query.setParameter(1, toWkb(geom));
+        query.setParameter(2, geom.getSRID());
+    }
+
+    /**
+     * Get the IDs of the metro areas near a geometry.
+     * @param condition An additional condition on the metro areas (m), or null.
+     */
+    public static List<Long> findMetroIdsNear (Geometry geom, String condition) {
+        Query query = createNearMetrosQuery("m.id", condition);
+        setGeometry(query, geom);
+
+        List<Long> ids = new ArrayList<Long>();
+        for (Object id : query.getResultList()) {
+            ids.add(((BigInteger) id).longValue());
+        }
+
+        return ids;
+    }
+
+    /**
+     * Get a geometry as WKB. WKBWriters are not thread safe, and are cheap to make.
+     */
+    public static byte[] toWkb (Geometry geom) {
+        return new WKBWriter().write(geom);
+    }
+}
@@ -0,0 +1,358 @@
+/*
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PreUpdate;
+
+import models.GtfsFeed;
+import models.MetroArea;
+
+import org.hibernate.EntityMode;
+import org.hibernate.SQLQuery;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.engine.EntityEntry;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.Type;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.ParseException;
+
+import play.Logger;
+import play.Play;
+import play.db.jpa.JPA;
+import play.jobs.Job;
+
+/**
+ * Vector tiles of the metro areas and the coverage of the current feeds, kept on disk in
+ * dashboard.tile_cache_directory until a metro area or feed changes.
+ *
+ * Each layer has a version, which is part of the path of its tiles; when something in a layer
+ * changes the version is incremented, so tiles already on disk are no longer used, and the
+ * directories of old versions are deleted in the background. Versions start at the time the
+ * application started, so tiles from an earlier run are never used either. Saving a metro or feed
+ * only changes the version if something that is in the tiles changed.
+ *
+ * @author mattwigway
+ */
+public class TileCache {
+    public static final String METROS = "metros";
+    public static final String FEEDS = "feeds";
+
+    public static final int MAX_ZOOM = 18;
+
+    /** Geometries are clipped to the tile plus this many pixels, so edges don't show at seams */
+    private static final int BUFFER_PIXELS = 8;
+
+    /** The query for each layer: the ID, the name and the geometry as WKB */
+    private static Map<String, String> queries = new HashMap<String, String>();
+
+    static {
+        queries.put(METROS,
+                "SELECT m.id, m.name, " + clip("m.the_geom") + " " +
+                "FROM MetroArea m, (SELECT ST_MakeEnvelope(?, ?, ?, ?, 4326) AS box) b " +
+                "WHERE m.the_geom && b.box");
+        queries.put(FEEDS,
+                "SELECT f.id, f.agencyName, " + clip("f.the_geom") + " " +
+                "FROM GtfsFeed f, (SELECT ST_MakeEnvelope(?, ?, ?, ?, 4326) AS box) b " +
+                "WHERE f.the_geom && b.box AND f.supersededBy_id IS NULL AND f.disabled = false");
+    }
+
+    /** The properties of the entities in each layer that affect its tiles */
+    private static Map<String, String[]> properties = new HashMap<String, String[]>();
+
+    static {
+        properties.put(METROS, new String[] {"the_geom", "name"});
+        properties.put(FEEDS,
+                new String[] {"the_geom", "agencyName", "disabled", "supersededBy"});
+    }
+
+    private static ConcurrentHashMap<String, AtomicLong> versions =
+            new ConcurrentHashMap<String, AtomicLong>();
+
+    /** Is a deletion of old versions waiting to run? */
+    private static AtomicBoolean deletePending = new AtomicBoolean(false);
+
+    static {
+        long startup = System.currentTimeMillis();
+        for (String layer : queries.keySet()) {
+            versions.put(layer, new AtomicLong(startup));
+        }
+        deleteOldVersions();
+    }
+
+    private static String clip (String column) {
+        // the first parameter is the simplification tolerance
+        return "ST_AsBinary(ST_SimplifyPreserveTopology(ST_Intersection(" + column + ", b.box), ?))";
+    }
+
+    public static boolean hasLayer (String layer) {
+        return queries.containsKey(layer);
+    }
+
+    /**
+     * Get a tile, building it if it is not on disk. Must be called in a JPA transaction.
+     * @return the tile as protobuf, or null if there is no such layer.
+     */
+    public static byte[] get (String layer, int z, int x, int y) throws IOException {
+        AtomicLong version = versions.get(layer);
+        if (version == null)
+            return null;
+
+        long ver = version.get();
+        File tile = new File(getDirectory(),
+                layer + "/" + ver + "/" + z + "/" + x + "/" + y + ".pbf");
+
+        if (tile.exists())
+            return read(tile);
+
+        byte[] encoded = build(layer, z, x, y);
+
+        if (ver == version.get()) {
+            // write it somewhere else first, so no one reads half a tile
+            tile.getParentFile().mkdirs();
+            File temp = new File(tile.getParentFile(), y + "-" + UUID.randomUUID().toString());
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(encoded);
+            } finally {
+                out.close();
+            }
+
+            if (!temp.renameTo(tile))
+                // someone else built it at the same time
+                temp.delete();
+        }
+
+        return encoded;
+    }
+
+    private static byte[] build (String layer, int z, int x, int y) {
+        double[] bounds = VectorTileEncoder.getBounds(z, x, y);
+        // a pixel, in degrees of longitude
+        double pixel = (bounds[2] - bounds[0]) / 256;
+
+        Session session = (Session) JPA.em().getDelegate();
+        SQLQuery query = session.createSQLQuery(queries.get(layer));
+        query.setDouble(0, pixel);
+        query.setDouble(1, bounds[0] - BUFFER_PIXELS * pixel);
+        query.setDouble(2, bounds[1] - BUFFER_PIXELS * pixel);
+        query.setDouble(3, bounds[2] + BUFFER_PIXELS * pixel);
+        query.setDouble(4, bounds[3] + BUFFER_PIXELS * pixel);
+        query.setFetchSize(100);
+        ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY);
+
+        VectorTileEncoder encoder = new VectorTileEncoder(z, x, y);
+
+        try {
+            while (results.next()) {
+                long id = ((BigInteger) results.get(0)).longValue();
+                byte[] wkb = (byte[]) results.get(2);
+
+                if (wkb == null)
+                    continue;
+
+                Geometry geom;
+                try {
+                    geom = GeometryUtils.parseWkb(wkb, 4326);
+                } catch (ParseException e) {
+                    Logger.error("Could not parse geometry for %s %s", layer, id);
+                    e.printStackTrace();
+                    continue;
+                }
+
+                Map<String, String> properties = new HashMap<String, String>();
+                properties.put("id", "" + id);
+                properties.put(METROS.equals(layer) ? "name" : "agencyName",
+                        (String) results.get(1));
+
+                encoder.addFeature(layer, id, properties, geom);
+            }
+        } finally {
+            results.close();
+        }
+
+        return encoder.encode();
+    }
+
+    /**
+     * Get the current version of a layer, which changes whenever its tiles are invalidated.
+     */
+    public static long getVersion (String layer) {
+        return versions.get(layer).get();
+    }
+
+    /**
+     * Stop using the tiles of a layer once the current transaction commits, because something in
+     * it changed. Until then, tiles are built from the rows as they were, so they must still be
+     * cached under the old version.
+     */
+    public static void invalidateAfterCommit (final String layer) {
+        TransactionUtils.afterCommit(new Runnable () {
+            public void run () {
+                invalidate(layer);
+            }
+        });
+    }
+
+    /**
+     * Stop using the tiles of a layer, because something in it changed.
+     */
+    public static void invalidate (String layer) {
+        AtomicLong version = versions.get(layer);
+        if (version == null)
+            return;
+
+        version.incrementAndGet();
+        deleteOldVersions();
+    }
+
+    /**
+     * Delete the tiles of all but the current version of every layer, in the background. However
+     * many times the layers change, only one deletion is waiting to run at once.
+     */
+    private static void deleteOldVersions () {
+        if (!deletePending.compareAndSet(false, true))
+            return;
+
+        new Job () {
+            public void doJob () {
+                // changes from now on need another deletion
+                deletePending.set(false);
+
+                for (Map.Entry<String, AtomicLong> version : versions.entrySet()) {
+                    File[] dirs = new File(getDirectory(), version.getKey()).listFiles();
+                    if (dirs == null)
+                        continue;
+
+                    String current = "" + version.getValue().get();
+                    for (File dir : dirs) {
+                        if (!dir.getName().equals(current))
+                            delete(dir);
+                    }
+                }
+            }
+        }.now();
+    }
+
+    private static void delete (File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+
+    private static File getDirectory () {
+        return Play.getFile(
+                Play.configuration.getProperty("dashboard.tile_cache_directory", "data/tiles"));
+    }
+
+    private static byte[] read (File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0)
+                    throw new IOException("Tile " + file + " was truncated");
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    private static String getLayer (Object entity) {
+        if (entity instanceof MetroArea)
+            return METROS;
+        else if (entity instanceof GtfsFeed)
+            return FEEDS;
+        else
+            return null;
+    }
+
+    /**
+     * Has any of the given properties of an entity changed since it was loaded? This is the same
+     * comparison Hibernate uses to decide what to update. Must be called in the JPA transaction
+     * the entity was loaded in.
+     */
+    private static boolean isChanged (Object entity, String[] names) {
+        SessionImplementor session = (SessionImplementor) JPA.em().getDelegate();
+        EntityEntry entry = session.getPersistenceContext().getEntry(entity);
+
+        if (entry == null || entry.getLoadedState() == null)
+            // nothing to compare it to
+            return true;
+
+        EntityPersister persister = entry.getPersister();
+        Type[] types = persister.getPropertyTypes();
+        Object[] loaded = entry.getLoadedState();
+
+        for (String name : names) {
+            int i = persister.getEntityMetamodel().getPropertyIndex(name);
+            Object current = persister.getPropertyValue(entity, i, EntityMode.POJO);
+
+            if (!types[i].isEqual(loaded[i], current, EntityMode.POJO))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Entity listener that invalidates the tiles of the layer an entity is in when a change to it
+     * is committed. Feeds are saved for all sorts of reasons, often all of them at once, so an update only
+     * invalidates the tiles if it changes something in them.
+     */
+    public static class Invalidator {
+        @PostPersist
+        @PostRemove
+        public void changed (Object entity) {
+            String layer = getLayer(entity);
+            if (layer != null)
+                invalidateAfterCommit(layer);
+        }
+
+        @PreUpdate
+        public void updating (Object entity) {
+            String layer = getLayer(entity);
+            if (layer != null && isChanged(entity, properties.get(layer)))
+                invalidateAfterCommit(layer);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package utils;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+
+import play.db.jpa.JPA;
+
+/**
+ * Run things once the current JPA transaction has committed, e.g. to tell other threads about
+ * changes only once they can see them.
+ *
+ * @author mattwigway
+ */
+public class TransactionUtils {
+    /**
+     * Run the given action once the current transaction commits. It is not run if the transaction
+     * is rolled back, and is run at once if there is no transaction.
+     */
+    public static void afterCommit (final Runnable action) {
+        Transaction tx = ((Session) JPA.em().getDelegate()).getTransaction();
+
+        if (!tx.isActive()) {
+            action.run();
+            return;
+        }
+
+        tx.registerSynchronization(new Synchronization () {
+            public void beforeCompletion () {}
+
+            public void afterCompletion (int status) {
+                if (status == Status.STATUS_COMMITTED)
+                    action.run();
+            }
+        });
+    }
+}
@@ -0,0 +1,104 @@
+/*
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Disjoint sets of items, for finding connected components. Components, and the items in them,
+ * are kept in the order the items were first added.
+ *
+ * @author mattwigway
+ */
+public class UnionFind<T> {
+    private Map<T, T> parent = new HashMap<T, T>();
+
+    /** The order each item was added in; the earliest item in a set is its root */
+    private Map<T, Integer> order = new LinkedHashMap<T, Integer>();
+
+    /**
+     * Add an item in a set by itself, if it is not already present.
+     */
+    public void add (T item) {
+        if (!parent.containsKey(item)) {
+            parent.put(item, item);
+            order.put(item, order.size());
+        }
+    }
+
+    /**
+     * Put two items, and everything connected to them, in the same set, adding them if necessary.
+     */
+    public void union (T a, T b) {
+        add(a);
+        add(b);
+
+        T rootA = find(a);
+        T rootB = find(b);
+
+        if (rootA.equals(rootB))
+            return;
+
+        if (order.get(rootA) < order.get(rootB))
+            parent.put(rootB, rootA);
+        else
+            parent.put(rootA, rootB);
+    }
+
+    /**
+     * Get the root of the set an item is in.
+     */
+    public T find (T item) {
+        T root = item;
+        while (!parent.get(root).equals(root)) {
+            root = parent.get(root);
+        }
+
+        // point everything on the way straight at the root
+        while (!item.equals(root)) {
+            T next = parent.get(item);
+            parent.put(item, root);
+            item = next;
+        }
+
+        return root;
+    }
+
+    /**
+     * Get the sets, in the order their first items were added.
+     */
+    public List<List<T>> getComponents () {
+        Map<T, List<T>> components = new LinkedHashMap<T, List<T>>();
+
+        for (T item : order.keySet()) {
+            T root = find(item);
+            List<T> component = components.get(root);
+
+            if (component == null) {
+                component = new ArrayList<T>();
+                components.put(root, component);
+            }
+
+            component.add(item);
+        }
+
+        return new ArrayList<List<T>>(components.values());
+    }
+}
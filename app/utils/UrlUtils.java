@@ -0,0 +1,40 @@
+/*
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package utils;
+
+import java.util.regex.Pattern;
+
+public class UrlUtils {
+    /**
+     * Strips the protocol, strips pathinfo, and strips www. to get a hopefully LCD domain name.
+     * This is the regular expression the URL matching queries used to run in the database.
+     */
+    private static final Pattern DOMAIN =
+            Pattern.compile("(?:\\W*)(?:https?://)?(?:www\\.)?([a-zA-Z0-9\\-_\\.]*)(?:/.*)?(?:\\W*)");
+
+    /**
+     * Get the normalized domain of a URL, which feeds and agencies are matched on, e.g.
+     * http://www.bart.gov/schedules becomes bart.gov.
+     * @return the domain, or null if the URL is null or has no domain.
+     */
+    public static String normalizeDomain (String url) {
+        if (url == null)
+            return null;
+
+        String domain = DOMAIN.matcher(url.toLowerCase()).replaceFirst("$1");
+        return domain.length() > 0 ? domain : null;
+    }
+}
@@ -0,0 +1,332 @@
+/*
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Encodes polygons as a Mapbox Vector Tile (version 2 of the spec). There is no protobuf library
+ * in the dashboard, and a tile only needs a handful of message types, so the protobuf encoding is
+ * done by hand.
+ *
+ * Geometries are in WGS84 and are projected to web mercator tile coordinates here. Each feature
+ * has an integer ID and string properties.
+ *
+ * @author mattwigway
+ */
+public class VectorTileEncoder {
+    public static final int EXTENT = 4096;
+
+    private int z;
+    private int x;
+    private int y;
+    private List<Layer> layers;
+
+    /** The end of the last ring written, which the next ring's MoveTo is relative to */
+    private int cursorX;
+    private int cursorY;
+
+    public VectorTileEncoder (int z, int x, int y) {
+        this.z = z;
+        this.x = x;
+        this.y = y;
+        this.layers = new ArrayList<Layer>();
+    }
+
+    /**
+     * Add a feature to the named layer. Non-polygonal parts of the geometry are ignored, as are
+     * features with nothing left once they are in tile coordinates.
+     */
+    public void addFeature (String layerName, long id, Map<String, String> properties,
+            Geometry geom) {
+        List<Integer> commands = new ArrayList<Integer>();
+        cursorX = 0;
+        cursorY = 0;
+        addPolygons(geom, commands);
+
+        if (commands.isEmpty())
+            return;
+
+        Layer layer = null;
+        for (Layer l : layers) {
+            if (l.name.equals(layerName))
+                layer = l;
+        }
+
+        if (layer == null) {
+            layer = new Layer(layerName);
+            layers.add(layer);
+        }
+
+        layer.addFeature(id, properties, commands);
+    }
+
+    /**
+     * Get the tile as protobuf bytes.
+     */
+    public byte[] encode () {
+        Protobuf tile = new Protobuf();
+
+        for (Layer layer : layers) {
+            tile.writeMessage(3, layer.encode());
+        }
+
+        return tile.toByteArray();
+    }
+
+    private void addPolygons (Geometry geom, List<Integer> commands) {
+        if (geom instanceof Polygon) {
+            Polygon poly = (Polygon) geom;
+
+            // a polygon whose exterior ring collapsed is dropped entirely
+            if (!addRing(poly.getExteriorRing(), true, commands))
+                return;
+
+            for (int i = 0; i < poly.getNumInteriorRing(); i++) {
+                addRing(poly.getInteriorRingN(i), false, commands);
+            }
+        }
+        else {
+            for (int i = 0; i < geom.getNumGeometries(); i++) {
+                Geometry part = geom.getGeometryN(i);
+                // a single polygon contains itself
+                if (part != geom)
+                    addPolygons(part, commands);
+            }
+        }
+    }
+
+    /**
+     * Add a ring as MoveTo, LineTo and ClosePath commands, relative to the end of the last ring.
+     * @return false if the ring is too small to show at this zoom.
+     */
+    private boolean addRing (LineString ring, boolean exterior, List<Integer> commands) {
+        Coordinate[] coords = ring.getCoordinates();
+        List<int[]> points = new ArrayList<int[]>();
+
+        // project, and drop points that land on the same pixel as the last one
+        for (int i = 0; i < coords.length - 1; i++) {
+            int[] pt = project(coords[i]);
+            if (points.isEmpty() || !sameAs(pt, points.get(points.size() - 1)))
+                points.add(pt);
+        }
+
+        if (points.size() > 1 && sameAs(points.get(0), points.get(points.size() - 1)))
+            points.remove(points.size() - 1);
+
+        if (points.size() < 3)
+            return false;
+
+        // shoelace formula; positive is clockwise with y down, which is how exterior rings must
+        // be wound
+        long area = 0;
+        for (int i = 0; i < points.size(); i++) {
+            int[] a = points.get(i);
+            int[] b = points.get((i + 1) % points.size());
+            area += (long) a[0] * b[1] - (long) b[0] * a[1];
+        }
+
+        if (area == 0)
+            return false;
+
+        if ((area > 0) != exterior) {
+            List<int[]> reversed = new ArrayList<int[]>();
+            for (int i = points.size() - 1; i >= 0; i--) {
+                reversed.add(points.get(i));
+            }
+            points = reversed;
+        }
+
+        commands.add(command(1, 1));
+        commands.add(zigzag(points.get(0)[0] - cursorX));
+        commands.add(zigzag(points.get(0)[1] - cursorY));
+
+        commands.add(command(2, points.size() - 1));
+        for (int i = 1; i < points.size(); i++) {
+            commands.add(zigzag(points.get(i)[0] - points.get(i - 1)[0]));
+            commands.add(zigzag(points.get(i)[1] - points.get(i - 1)[1]));
+        }
+
+        commands.add(command(7, 1));
+
+        cursorX = points.get(points.size() - 1)[0];
+        cursorY = points.get(points.size() - 1)[1];
+
+        return true;
+    }
+
+    private int[] project (Coordinate c) {
+        double n = Math.pow(2, z);
+        double lat = Math.toRadians(Math.max(-85.0511, Math.min(85.0511, c.y)));
+        double px = (c.x + 180) / 360 * n;
+        double py = (1 - Math.log(Math.tan(lat) + 1 / Math.cos(lat)) / Math.PI) / 2 * n;
+        return new int[] {
+            (int) Math.round((px - x) * EXTENT),
+            (int) Math.round((py - y) * EXTENT)
+        };
+    }
+
+    private static boolean sameAs (int[] a, int[] b) {
+        return a[0] == b[0] && a[1] == b[1];
+    }
+
+    private static int command (int id, int count) {
+        return (id & 0x7) | (count << 3);
+    }
+
+    private static int zigzag (int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    /**
+     * Get the WGS84 bounds of a tile, as {west, south, east, north}.
+     */
+    public static double[] getBounds (int z, int x, int y) {
+        double n = Math.pow(2, z);
+        return new double[] {
+            x / n * 360 - 180,
+            Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * (y + 1) / n)))),
+            (x + 1) / n * 360 - 180,
+            Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * y / n))))
+        };
+    }
+
+    private static class Layer {
+        private String name;
+        private Map<String, Integer> keys;
+        private Map<String, Integer> values;
+        private Protobuf features;
+
+        public Layer (String name) {
+            this.name = name;
+            this.keys = new LinkedHashMap<String, Integer>();
+            this.values = new LinkedHashMap<String, Integer>();
+            this.features = new Protobuf();
+        }
+
+        public void addFeature (long id, Map<String, String> properties, List<Integer> commands) {
+            List<Integer> tags = new ArrayList<Integer>();
+            for (Map.Entry<String, String> prop : properties.entrySet()) {
+                if (prop.getValue() == null)
+                    continue;
+
+                tags.add(index(keys, prop.getKey()));
+                tags.add(index(values, prop.getValue()));
+            }
+
+            Protobuf feature = new Protobuf();
+            feature.writeVarint(1, id);
+            feature.writePacked(2, tags);
+            // POLYGON
+            feature.writeVarint(3, 3);
+            feature.writePacked(4, commands);
+
+            features.writeMessage(2, feature.toByteArray());
+        }
+
+        public byte[] encode () {
+            Protobuf layer = new Protobuf();
+            layer.writeVarint(15, 2);
+            layer.writeString(1, name);
+            layer.writeRaw(features.toByteArray());
+
+            for (String key : keys.keySet()) {
+                layer.writeString(3, key);
+            }
+
+            for (String value : values.keySet()) {
+                // Value message with string_value
+                Protobuf v = new Protobuf();
+                v.writeString(1, value);
+                layer.writeMessage(4, v.toByteArray());
+            }
+
+            layer.writeVarint(5, EXTENT);
+            return layer.toByteArray();
+        }
+
+        private static int index (Map<String, Integer> map, String s) {
+            Integer i = map.get(s);
+            if (i == null) {
+                i = map.size();
+                map.put(s, i);
+            }
+            return i;
+        }
+    }
+
+    /**
+     * Just enough of the protobuf wire format for vector tiles.
+     */
+    private static class Protobuf {
+        private ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        public void writeVarint (int field, long value) {
+            writeRawVarint(field << 3);
+            writeRawVarint(value);
+        }
+
+        public void writeString (int field, String value) {
+            try {
+                writeMessage(field, value.getBytes("UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException("JVM does not support UTF-8", e);
+            }
+        }
+
+        /** Write a length-delimited field */
+        public void writeMessage (int field, byte[] bytes) {
+            writeRawVarint((field << 3) | 2);
+            writeRawVarint(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        public void writePacked (int field, List<Integer> values) {
+            Protobuf packed = new Protobuf();
+            for (int v : values) {
+                // uint32; commands and zigzagged parameters are never negative
+                packed.writeRawVarint(v & 0xffffffffL);
+            }
+            writeMessage(field, packed.toByteArray());
+        }
+
+        public void writeRaw (byte[] bytes) {
+            out.write(bytes, 0, bytes.length);
+        }
+
+        private void writeRawVarint (long value) {
+            while ((value & ~0x7fL) != 0) {
+                out.write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+
+        public byte[] toByteArray () {
+            return out.toByteArray();
+        }
+    }
+}
@@ -16,13 +16,21 @@
 import org.junit.*;
 import org.postgresql.util.PSQLException;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
 import deployment.DeploymentPlan;
 import deployment.DeploymentPlan.FeedDescriptor;
+import deployment.DeploymentPlanDiff;
+import deployment.DeploymentPlanGenerator;
 import deployment.DeploymentPlanScheduler;
+import deployment.RebuildQueue;
 
 import java.text.SimpleDateFormat;
 import java.util.*;
 
+import play.Play;
 import play.db.jpa.JPA;
 import play.test.*;
 import models.*;
@@ -320,6 +328,51 @@ public class DeploymentPlanTest extends UnitTest {
          assertEquals(0, rebuilds.size());
      }
      
+     /**
+      * A plan that does not schedule rebuilds, e.g. one that is only being looked at, should
+      * leave the metro's scheduled rebuilds alone.
+      */
+     @Test
+     public void testPlanWithoutRebuilds () {
+         MetroArea chi = MetroArea.find("byName", "Chicago, IL").first();
+         assertNotNull(chi);
+         
+         Date rebuild = getDate(2012, 7, 1);
+         DeploymentPlanScheduler.scheduleRebuild(chi, rebuild);
+         
+         // the same plan as testDeploymentScheduler, which schedules two rebuilds
+         DeploymentPlan dp = new DeploymentPlan(chi, getDate(2012, 6, 15), 10, false);
+         assertEquals(1, dp.getFeeds().length);
+         
+         List<Date> rebuilds = DeploymentPlanScheduler.getRebuildsForMetro(chi);
+         assertEquals(1, rebuilds.size());
+         assertEquals(rebuild.getTime(), rebuilds.get(0).getTime());
+         
+         DeploymentPlanScheduler.clearRebuilds(chi);
+     }
+     
+     /**
+      * A feed that starts less than a day after the end of the window would be due for a rebuild
+      * before the plan was built; the rebuild should be put off rather than being due at once.
+      */
+     @Test
+     public void testPastDueRebuildIsDeferred () {
+         MetroArea chi = MetroArea.find("byName", "Chicago, IL").first();
+         assertNotNull(chi);
+         
+         // CTA starts 2012-10-15, the day after the end of the window
+         Date date = getDate(2012, 9, 4);
+         new DeploymentPlan(chi, date, 10);
+         
+         List<Date> rebuilds = DeploymentPlanScheduler.getRebuildsForMetro(chi);
+         assertTrue(rebuilds.size() > 0);
+         Collections.sort(rebuilds);
+         
+         assertEquals(date.getTime() + RebuildQueue.getRetryMillis(), rebuilds.get(0).getTime());
+         
+         DeploymentPlanScheduler.clearRebuilds(chi);
+     }
+     
      /**
       * Test that disabled feeds work properly
       * A disabled feed at the end should have the previous feed included
@@ -417,4 +470,108 @@ public class DeploymentPlanTest extends UnitTest {
          cal.set(year, month, day);
          return cal.getTime();
      }
+     
+     /**
+      * The planner should load all the feeds for a metro in a constant number of queries, not one
+      * per feed.
+      */
+     @Test
+     public void testQueryCount () {
+         MetroArea pdx = MetroArea.find("byName", "Portland, OR").first();
+         assertNotNull(pdx);
+         
+         DeploymentPlan dp = new DeploymentPlan(pdx, getDate(2011, 2, 2), 1400);
+         
+         // one for the agencies and their feeds, and one for the feeds they supersede, which are
+         // all feeds of the same agencies
+         assertEquals(2, dp.getQueryCount());
+     }
+     
+     /**
+      * The same plan should always have the same fingerprint, and should not be sent twice.
+      */
+     @Test
+     public void testFingerprint () {
+         MetroArea pdx = MetroArea.find("byName", "Portland, OR").first();
+         assertNotNull(pdx);
+         
+         DeploymentPlan dp = new DeploymentPlan(pdx, getDate(2011, 2, 2), 1400);
+         DeploymentPlan dp2 = new DeploymentPlan(pdx, getDate(2011, 2, 2), 1400);
+         assertEquals(dp.getFingerprint(), dp2.getFingerprint());
+         assertFalse(dp2.isUnchanged(dp2.getFingerprint()));
+         
+         SentDeploymentPlan.record(pdx.id, dp.getFingerprint(), dp.toJson());
+         assertTrue(dp2.isUnchanged(dp2.getFingerprint()));
+     }
+     
+     /**
+      * If a plan cannot be sent, the metro should be rebuilt again later, even though building
+      * the plan cleared its rebuilds.
+      */
+     @Test
+     public void testSendFailureReschedules () throws Exception {
+         MetroArea pdx = MetroArea.find("byName", "Portland, OR").first();
+         assertNotNull(pdx);
+         
+         // plans are built in other transactions
+         JPA.em().getTransaction().commit();
+         JPA.em().getTransaction().begin();
+         
+         String attempts = Play.configuration.getProperty("dashboard.deployment.send_attempts");
+         Play.configuration.setProperty("dashboard.deployment.send_attempts", "1");
+         long start = System.currentTimeMillis();
+         List<DeploymentPlanGenerator.MetroResult> results;
+         
+         try {
+             // nothing listens on port 1
+             results = DeploymentPlanGenerator.generate(Arrays.asList(pdx),
+                     "http://localhost:1/deploy", true);
+         } finally {
+             Play.configuration.setProperty("dashboard.deployment.send_attempts", attempts);
+         }
+         
+         assertEquals(1, results.size());
+         assertEquals(DeploymentPlanGenerator.MetroResult.Status.SEND_FAILED, results.get(0).status);
+         
+         List<Date> rebuilds = DeploymentPlanScheduler.getRebuildsForMetro(pdx);
+         assertEquals(1, rebuilds.size());
+         assertTrue(rebuilds.get(0).getTime() >= start + RebuildQueue.getRetryMillis());
+     }
+     
+     /**
+      * Differences from the last plan sent should be found by feed ID.
+      */
+     @Test
+     public void testDiff () {
+         MetroArea pdx = MetroArea.find("byName", "Portland, OR").first();
+         assertNotNull(pdx);
+         
+         DeploymentPlan dp = new DeploymentPlan(pdx, getDate(2011, 2, 2), 1400);
+         DeploymentPlanDiff diff = dp.getDiff();
+         assertTrue(diff.full);
+         assertEquals(dp.getFeeds().length, diff.addedFeeds.size());
+         
+         SentDeploymentPlan.record(pdx.id, dp.getFingerprint(), dp.toJson());
+         assertTrue(dp.getDiff().isEmpty());
+         
+         // remove a feed and change another's expiration
+         String json = dp.toJson();
+         JsonObject plan = new JsonParser().parse(json).getAsJsonObject();
+         JsonArray feeds = plan.getAsJsonArray("feeds");
+         FeedDescriptor removed = dp.getFeeds()[0];
+         FeedDescriptor changed = dp.getFeeds()[1];
+         feeds.get(0).getAsJsonObject().addProperty("feedId", "gone");
+         feeds.get(1).getAsJsonObject().addProperty("expireOn", "2000-01-01");
+         String previous = plan.toString();
+         diff = DeploymentPlanDiff.between(previous, "a", json, "b");
+         
+         assertFalse(diff.full);
+         assertEquals(1, diff.addedFeeds.size());
+         assertEquals(removed.getFeedId(), diff.addedFeeds.get(0).getFeedId());
+         assertEquals(1, diff.removedFeeds.size());
+         assertEquals("gone", diff.removedFeeds.get(0).getFeedId());
+         assertEquals(1, diff.changedFeeds.size());
+         assertEquals(changed.getFeedId(), diff.changedFeeds.get(0).feedId);
+         assertEquals(Arrays.asList("expireOn"), diff.changedFeeds.get(0).changes);
+     }
 }
@@ -15,6 +15,7 @@
 
 
 import org.junit.*;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
 
 import java.io.File;
 import java.text.SimpleDateFormat;
@@ -22,13 +23,21 @@ import java.util.*;
 
 import play.Play;
 import play.test.*;
+import updaters.FeedStatsCache;
 import updaters.FeedStatsCalculator;
+import updaters.ServiceCalendarIndex;
 import models.*;
 
 public class FeedStatsTest extends UnitTest {
 
     @Test
     public void testStartEndDates () throws Exception {
+        for (FeedStatsCalculator.Engine engine : FeedStatsCalculator.Engine.values()) {
+            testStartEndDates(engine);
+        }
+    }
+    
+    private void testStartEndDates (FeedStatsCalculator.Engine engine) throws Exception {
         TimeZone gmt = TimeZone.getTimeZone("gmt");
         
         // http://stackoverflow.com/questions/4719891
@@ -41,7 +50,7 @@ public class FeedStatsTest extends UnitTest {
         SimpleDateFormat isoDate = new SimpleDateFormat("yyyy-MM-dd");
         isoDate.setTimeZone(gmt);
         
-        FeedStatsCalculator stats = new FeedStatsCalculator(in);
+        FeedStatsCalculator stats = new FeedStatsCalculator(in, engine);
 
         // 1 August 2012
         assertEquals("2012-08-01", isoDate.format(stats.getStartDate()));
@@ -51,7 +60,7 @@ public class FeedStatsTest extends UnitTest {
         // This feed has a calendar.txt with start and end dates that have no
         // service because they are days of the week that said service IDs have no service
         in = new File(path, "calendarShrinking.zip");
-        stats = new FeedStatsCalculator(in);
+        stats = new FeedStatsCalculator(in, engine);
         
         // 15 August 2012
         assertEquals("2012-08-16", isoDate.format(stats.getStartDate()));
@@ -62,12 +71,135 @@ public class FeedStatsTest extends UnitTest {
         
         // This feed has a calendar.txt with the first and last days removed by calendar_dates.txt
         in = new File(path, "holesAtStartAndEnd.zip");
-        stats = new FeedStatsCalculator(in);
+        stats = new FeedStatsCalculator(in, engine);
         
         // 2 January 2012
         assertEquals("2012-01-02", isoDate.format(stats.getStartDate()));
         // 30 December 2012
         assertEquals("2012-12-30", isoDate.format(stats.getEndDate()));
+        
+        // This feed has a calendar.txt row that ends weeks before it starts, and before any
+        // other service starts; that service never runs
+        in = new File(path, "reversedRange.zip");
+        stats = new FeedStatsCalculator(in, engine);
+        
+        assertEquals("2012-08-01", isoDate.format(stats.getStartDate()));
+        assertEquals("2012-08-10", isoDate.format(stats.getEndDate()));
+    }
+    
+    /**
+     * The streaming engine should produce exactly the same stats as a full OneBusAway load.
+     */
+    @Test
+    public void testEnginesAgree () throws Exception {
+        File path = new File(Play.applicationPath, "test/gtfs");
+        
+        for (String name : new String[] {"datesOnly.zip", "calendarShrinking.zip", "holesAtStartAndEnd.zip",
+                "reversedRange.zip"}) {
+            File in = new File(path, name);
+            
+            GtfsFeed oba = new GtfsFeed();
+            new FeedStatsCalculator(in, FeedStatsCalculator.Engine.ONEBUSAWAY).applyExtended(oba);
+            
+            GtfsFeed streaming = new GtfsFeed();
+            new FeedStatsCalculator(in, FeedStatsCalculator.Engine.STREAMING).applyExtended(streaming);
+            
+            assertSameStats(oba, streaming);
+        }
+    }
+
+    /**
+     * The default engine should reject a feed that OneBusAway rejects, rather than giving it
+     * stats; this one has a stop time with a stop_sequence that is not a number.
+     */
+    @Test
+    public void testMalformedFeed () throws Exception {
+        File in = new File(Play.applicationPath, "test/gtfs/badStopTimes.zip");
+        
+        assertRejected(in, FeedStatsCalculator.Engine.ONEBUSAWAY);
+        assertRejected(in, FeedStatsCalculator.getDefaultEngine());
+    }
+    
+    private void assertRejected (File in, FeedStatsCalculator.Engine engine) {
+        try {
+            new FeedStatsCalculator(in, engine);
+        } catch (Exception e) {
+            return;
+        }
+        
+        fail(engine + " engine accepted malformed feed " + in);
+    }
+
+    /**
+     * Check the per-day active service counts from the service calendar.
+     */
+    @Test
+    public void testActiveServiceCounts () throws Exception {
+        File path = new File(Play.applicationPath, "test/gtfs");
+        
+        // service on 1 and 10 August only
+        ServiceCalendarIndex cal =
+                new FeedStatsCalculator(new File(path, "datesOnly.zip")).getServiceCalendar();
+        int[] counts = cal.getActiveServiceCounts();
+        assertEquals(10, counts.length);
+        assertEquals(1, counts[0]);
+        assertEquals(0, counts[1]);
+        assertEquals(1, counts[9]);
+        assertEquals(0, cal.getActiveServiceCount(new ServiceDate(2012, 8, 5)));
+        
+        // Thursday and Friday only
+        cal = new FeedStatsCalculator(new File(path, "calendarShrinking.zip")).getServiceCalendar();
+        counts = cal.getActiveServiceCounts();
+        assertEquals(2, counts.length);
+        assertEquals(1, counts[0]);
+        assertEquals(1, counts[1]);
+        assertEquals(new ServiceDate(2012, 8, 16), cal.getFirstActiveDate());
+        
+        // every day but the first and last of the year
+        cal = new FeedStatsCalculator(new File(path, "holesAtStartAndEnd.zip")).getServiceCalendar();
+        counts = cal.getActiveServiceCounts();
+        assertEquals(364, counts.length);
+        for (int count : counts) {
+            assertEquals(1, count);
+        }
+        assertEquals(0, cal.getActiveServiceCount(new ServiceDate(2012, 1, 1)));
+    }
+
+    /**
+     * A second request for the same file should come from the stats cache, with the same stats.
+     */
+    @Test
+    public void testStatsCache () throws Exception {
+        CachedFeedStats.deleteAll();
+        File in = new File(Play.applicationPath, "test/gtfs/holesAtStartAndEnd.zip");
+        
+        long hits = FeedStatsCache.getHits();
+        long misses = FeedStatsCache.getMisses();
+        
+        GtfsFeed parsed = new GtfsFeed();
+        FeedStatsCache.getStats(in).applyExtended(parsed);
+        assertEquals(misses + 1, FeedStatsCache.getMisses());
+        assertEquals(1, CachedFeedStats.count());
+        
+        GtfsFeed cached = new GtfsFeed();
+        FeedStatsCache.getStats(in).applyExtended(cached);
+        assertEquals(hits + 1, FeedStatsCache.getHits());
+        assertEquals(1, CachedFeedStats.count());
+        
+        assertSameStats(parsed, cached);
+    }
+
+    /**
+     * Check that two feeds got the same stats.
+     */
+    private void assertSameStats (GtfsFeed expected, GtfsFeed actual) {
+        assertEquals(expected.startDate, actual.startDate);
+        assertEquals(expected.expirationDate, actual.expirationDate);
+        assertEquals(expected.the_geom.toText(), actual.the_geom.toText());
+        assertEquals(expected.stops, actual.stops);
+        assertEquals(expected.timezone, actual.timezone);
+        assertEquals(expected.agencyName, actual.agencyName);
+        assertEquals(expected.agencyUrl, actual.agencyUrl);
     }
 
 }
@@ -0,0 +1,403 @@
+/*
+  This program is free software: you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public License
+  as published by the Free Software Foundation, either version 3 of
+  the License, or (props, at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.junit.*;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+import models.GtfsFeed;
+import play.Play;
+import play.libs.Codec;
+import play.test.*;
+import updaters.ContentAddressedFeedStorer;
+import updaters.FeedFileCache;
+import updaters.S3FeedStorer;
+import utils.HashUtils;
+
+public class FeedStorerTest extends UnitTest {
+    private File dir;
+    private ContentAddressedFeedStorer storer;
+
+    @Before
+    public void setUp () throws Exception {
+        Fixtures.deleteAllModels();
+
+        dir = File.createTempFile("feeds", "");
+        dir.delete();
+        dir.mkdir();
+
+        storer = new ContentAddressedFeedStorer();
+        storer.setPath(dir.getAbsolutePath());
+    }
+
+    @After
+    public void tearDown () {
+        delete(dir);
+    }
+
+    private static void delete (File f) {
+        if (f.isDirectory()) {
+            for (File child : f.listFiles()) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+
+    /**
+     * Storing the same feed twice should store it once, under its digest.
+     */
+    @Test
+    public void testDeduplication () throws Exception {
+        File gtfs = new File(Play.applicationPath, "test/gtfs/datesOnly.zip");
+        String url = gtfs.toURI().toURL().toString();
+
+        String first = storer.storeFeed(url);
+        String second = storer.storeFeed(url);
+
+        assertEquals(HashUtils.sha256(gtfs), first);
+        assertEquals(first, second);
+        assertEquals(1, storer.getFeedIds().size());
+        assertEquals(1, dir.listFiles().length);
+        assertEquals(gtfs.length(), storer.getFeed(first).length());
+
+        String other = storer.storeFeed(
+                new File(Play.applicationPath, "test/gtfs/calendarShrinking.zip").toURI().toURL().toString());
+        assertFalse(first.equals(other));
+        assertEquals(2, storer.getFeedIds().size());
+    }
+
+    /**
+     * A stored feed that is still referenced from the database should not be deleted.
+     */
+    @Test
+    public void testReferencedFeedsAreKept () throws Exception {
+        String id = storer.storeFeed(new File(Play.applicationPath, "test/gtfs/datesOnly.zip")
+                .toURI().toURL().toString());
+
+        GtfsFeed feed = new GtfsFeed();
+        feed.storedId = id;
+        feed.save();
+
+        storer.deleteFeed(id);
+        assertTrue(storer.getFeed(id).exists());
+
+        feed.delete();
+        storer.deleteFeed(id);
+        assertFalse(storer.getFeed(id).exists());
+    }
+
+    /**
+     * The local feed cache should evict least recently used feeds, but never pinned ones.
+     */
+    @Test
+    public void testFeedFileCache () throws Exception {
+        // each "feed" is 1000 bytes, and the cache holds two
+        FeedFileCache cache = new FeedFileCache(new File(dir, "cache"), 2000);
+        FeedFileCache.Loader loader = new FeedFileCache.Loader() {
+            public void load (String feedId, File target) throws Exception {
+                FileOutputStream out = new FileOutputStream(target);
+                out.write(new byte[1000]);
+                out.close();
+            }
+        };
+
+        File a = cache.pin("a", loader);
+        cache.unpin("a");
+        File b = cache.pin("b", loader);
+        cache.unpin("b");
+
+        // hit, and a is now more recently used than b
+        assertEquals(a, cache.pin("a", loader));
+        cache.unpin("a");
+
+        File c = cache.pin("c", loader);
+        assertTrue(a.exists());
+        assertFalse(b.exists());
+        assertTrue(c.exists());
+
+        // c is pinned, so it stays even though the cache is over budget
+        cache.pin("d", loader);
+        cache.pin("e", loader);
+        assertTrue(c.exists());
+        assertFalse(a.exists());
+
+        Map<String, Object> status = cache.getStatus();
+        assertEquals(1L, status.get("hits"));
+        assertEquals(5L, status.get("misses"));
+        assertEquals(1000L, status.get("bytesSaved"));
+    }
+
+    /**
+     * Feeds cached before a restart should be used again, but partial downloads should be deleted,
+     * and nothing else in the directory should be touched.
+     */
+    @Test
+    public void testFeedFileCacheRestart () throws Exception {
+        File cacheDir = new File(dir, "cache");
+        FeedFileCache.Loader loader = new FeedFileCache.Loader() {
+            public void load (String feedId, File target) throws Exception {
+                FileOutputStream out = new FileOutputStream(target);
+                out.write(new byte[1000]);
+                out.close();
+            }
+        };
+
+        FeedFileCache cache = new FeedFileCache(cacheDir, 2000);
+        File a = cache.pin("a", loader);
+        cache.unpin("a");
+
+        File other = new File(cacheDir, "other.txt");
+        other.createNewFile();
+        File partial = new File(a.getParentFile(), "b.partial");
+        partial.createNewFile();
+
+        cache = new FeedFileCache(cacheDir, 2000);
+        FeedFileCache.Loader failing = new FeedFileCache.Loader() {
+            public void load (String feedId, File target) throws Exception {
+                throw new Exception("feed should have been cached");
+            }
+        };
+
+        assertEquals(a, cache.pin("a", failing));
+        cache.unpin("a");
+        assertTrue(a.exists());
+        assertFalse(partial.exists());
+        assertTrue(other.exists());
+
+        Map<String, Object> status = cache.getStatus();
+        assertEquals(1L, status.get("hits"));
+        assertEquals(0L, status.get("misses"));
+        assertEquals(1000L, status.get("cachedBytes"));
+    }
+
+    /**
+     * A feed smaller than a part should be uploaded to S3 in one request, and a larger one in
+     * parts, the last one short, retrying a request that fails. An upload whose ETag does not
+     * match its data should be deleted.
+     */
+    @Test
+    public void testS3Upload () throws Exception {
+        S3StandIn s3 = new S3StandIn();
+        S3FeedStorer s3Storer = new S3FeedStorer();
+        s3Storer.setBucket("feeds");
+        s3Storer.setS3Client(s3.getClient());
+        s3Storer.setPartSizeMb(S3FeedStorer.MIN_PART_SIZE_MB);
+        s3Storer.setUploadThreads(2);
+
+        // fails the first time it is sent
+        File small = new File(Play.applicationPath, "test/gtfs/datesOnly.zip");
+        s3.putFailures = 1;
+        String id = s3Storer.storeFeed(small.toURI().toURL().toString());
+        assertNotNull(id);
+        assertEquals(2, s3.putAttempts);
+        assertEquals(0, s3.partAttempts);
+        assertTrue(Arrays.equals(read(small), s3.objects.get(id)));
+
+        // two full parts and a short one; the second fails the first time it is sent
+        int partSize = S3FeedStorer.MIN_PART_SIZE_MB * 1024 * 1024;
+        byte[] data = new byte[2 * partSize + 1000];
+        new Random(42).nextBytes(data);
+        File large = new File(dir, "large.zip");
+        FileOutputStream out = new FileOutputStream(large);
+        out.write(data);
+        out.close();
+
+        s3.failures.add(2);
+        id = s3Storer.storeFeed(large.toURI().toURL().toString());
+        assertNotNull(id);
+        assertEquals(4, s3.partAttempts);
+        assertEquals(3, s3.partSizes.size());
+        assertEquals(1000, (int) s3.partSizes.get(3));
+        assertTrue(Arrays.equals(data, s3.objects.get(id)));
+        assertFalse(s3.aborted);
+
+        s3.badETag = true;
+        assertNull(s3Storer.storeFeed(large.toURI().toURL().toString()));
+        assertNull(s3Storer.storeFeed(small.toURI().toURL().toString()));
+        assertEquals(2, s3.objects.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testS3MinimumPartSize () {
+        new S3FeedStorer().setPartSizeMb(S3FeedStorer.MIN_PART_SIZE_MB - 1);
+    }
+
+    private static byte[] read (File file) throws IOException {
+        return read(new FileInputStream(file));
+    }
+
+    private static byte[] read (InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] md5 (byte[] data) throws Exception {
+        return MessageDigest.getInstance("MD5").digest(data);
+    }
+
+    /**
+     * A stand-in for S3 that keeps objects in memory and answers the requests used to upload
+     * feeds, checking MD5s and computing ETags the way S3 does. One multipart upload at a time.
+     */
+    private static class S3StandIn implements InvocationHandler {
+        public Map<String, byte[]> objects = new HashMap<String, byte[]>();
+
+        /** Part numbers that fail the first time they are sent */
+        public Set<Integer> failures = new HashSet<Integer>();
+
+        /** How many single-request uploads fail before one succeeds */
+        public int putFailures = 0;
+
+        /** The size of each part of the last multipart upload */
+        public Map<Integer, Integer> partSizes = new TreeMap<Integer, Integer>();
+
+        public int putAttempts = 0;
+        public int partAttempts = 0;
+        public boolean badETag = false;
+        public boolean aborted = false;
+
+        private Map<Integer, byte[]> parts = new TreeMap<Integer, byte[]>();
+
+        public AmazonS3 getClient () {
+            return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(),
+                    new Class<?>[] {AmazonS3.class}, this);
+        }
+
+        public synchronized Object invoke (Object proxy, Method method, Object[] args)
+                throws Throwable {
+            String name = method.getName();
+
+            if (method.getDeclaringClass() == Object.class)
+                return method.invoke(this, args);
+
+            if (name.equals("putObject") && args.length == 4) {
+                byte[] data = read((InputStream) args[2]);
+                putAttempts++;
+
+                if (putFailures > 0) {
+                    putFailures--;
+                    throw new AmazonClientException("Connection reset");
+                }
+
+                checkMd5(data, ((ObjectMetadata) args[3]).getContentMD5());
+                objects.put((String) args[1], data);
+
+                PutObjectResult result = new PutObjectResult();
+                String etag = HashUtils.toHex(md5(data));
+                result.setETag(badETag ? etag.substring(1) + "0" : etag);
+                return result;
+            }
+
+            if (name.equals("initiateMultipartUpload")) {
+                parts.clear();
+                partSizes.clear();
+                InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+                result.setUploadId("upload");
+                return result;
+            }
+
+            if (name.equals("uploadPart")) {
+                UploadPartRequest req = (UploadPartRequest) args[0];
+                byte[] data = read(req.getInputStream());
+                partAttempts++;
+
+                if (failures.remove(req.getPartNumber()))
+                    throw new AmazonClientException("Connection reset");
+
+                checkMd5(data, req.getMd5Digest());
+                parts.put(req.getPartNumber(), data);
+                partSizes.put(req.getPartNumber(), data.length);
+
+                UploadPartResult result = new UploadPartResult();
+                result.setPartNumber(req.getPartNumber());
+                result.setETag(HashUtils.toHex(md5(data)));
+                return result;
+            }
+
+            if (name.equals("completeMultipartUpload")) {
+                CompleteMultipartUploadRequest req = (CompleteMultipartUploadRequest) args[0];
+                ByteArrayOutputStream object = new ByteArrayOutputStream();
+                ByteArrayOutputStream partMd5s = new ByteArrayOutputStream();
+
+                for (PartETag etag : req.getPartETags()) {
+                    byte[] data = parts.get(etag.getPartNumber());
+                    assertEquals(HashUtils.toHex(md5(data)), etag.getETag());
+                    object.write(data);
+                    partMd5s.write(md5(data));
+                }
+
+                objects.put(req.getKey(), object.toByteArray());
+
+                CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+                String etag = HashUtils.toHex(md5(partMd5s.toByteArray())) + "-" +
+                        req.getPartETags().size();
+                result.setETag("\"" + (badETag ? etag.substring(1) + "0" : etag) + "\"");
+                return result;
+            }
+
+            if (name.equals("abortMultipartUpload")) {
+                aborted = true;
+                parts.clear();
+                return null;
+            }
+
+            if (name.equals("deleteObject") && args.length == 2) {
+                objects.remove(args[1]);
+                return null;
+            }
+
+            throw new UnsupportedOperationException("S3 stand-in does not support " + name);
+        }
+
+        private static void checkMd5 (byte[] data, String expected) throws Exception {
+            if (!Codec.encodeBASE64(md5(data)).equals(expected))
+                throw new AmazonClientException("The Content-MD5 you specified did not match");
+        }
+    }
+}
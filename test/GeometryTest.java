@@ -1,9 +1,19 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Before;
 import org.junit.Test;
 
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.LinearRing;
 import com.vividsolutions.jts.geom.MultiPolygon;
@@ -16,6 +26,10 @@ import models.NtdAgency;
 import play.db.jpa.JPA;
 import play.test.UnitTest;
 import utils.GeometryUtils;
+import utils.MetroAreaIndex;
+import utils.SpatialQueries;
+import utils.TileCache;
+import utils.VectorTileEncoder;
 
 
 public class GeometryTest extends UnitTest {
@@ -178,4 +192,295 @@ public class GeometryTest extends UnitTest {
         assertFalse(metro1.disabled);
         assertFalse(metro2.disabled);
     }
+    
+    @Test
+    public void testVectorTile () throws Exception {
+        double[] bounds = VectorTileEncoder.getBounds(0, 0, 0);
+        assertEquals(-180, bounds[0], 1e-9);
+        assertEquals(-85.0511, bounds[1], 1e-4);
+        assertEquals(180, bounds[2], 1e-9);
+        assertEquals(85.0511, bounds[3], 1e-4);
+        
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("name", "Los Angeles");
+        
+        // at zoom 0 the square is smaller than a pixel, so nothing is left of it
+        VectorTileEncoder encoder = new VectorTileEncoder(0, 0, 0);
+        encoder.addFeature("metros", 1, properties, buildGeometry(34, -118));
+        assertEquals(0, encoder.encode().length);
+        
+        // at zoom 10 it is in tile 176/409
+        encoder = new VectorTileEncoder(10, 176, 409);
+        encoder.addFeature("metros", 1, properties, buildGeometry(34, -118));
+        byte[] tile = encoder.encode();
+        
+        // a layer, field 3 length-delimited
+        assertEquals(0x1a, tile[0]);
+        String contents = new String(tile, "ISO-8859-1");
+        assertTrue(contents.contains("metros"));
+        assertTrue(contents.contains("Los Angeles"));
+        
+        // field 4, 16 bytes: MoveTo (1456, 88), LineTo (+117, 0) (0, +140) (-117, 0), ClosePath;
+        // clockwise, with y down
+        byte[] geometry = new byte[] {
+                0x22, 16,
+                9, (byte) 0xe0, 0x16, (byte) 0xb0, 0x01,
+                26, (byte) 0xea, 0x01, 0, 0, (byte) 0x98, 0x02, (byte) 0xe9, 0x01, 0,
+                15
+        };
+        assertTrue(contents.contains(new String(geometry, "ISO-8859-1")));
+    }
+    
+    @Test
+    public void testMetroIndexParity () {
+        GeometryFactory gf = GeometryUtils.getGeometryFactoryForSrid(4326);
+        
+        // a metro with a hole in it
+        LinearRing shell = gf.createLinearRing(new Coordinate[] {
+                new Coordinate(-100, 40),
+                new Coordinate(-99.9, 40),
+                new Coordinate(-99.9, 40.1),
+                new Coordinate(-100, 40.1),
+                new Coordinate(-100, 40)
+        });
+        LinearRing hole = gf.createLinearRing(new Coordinate[] {
+                new Coordinate(-99.97, 40.03),
+                new Coordinate(-99.93, 40.03),
+                new Coordinate(-99.93, 40.07),
+                new Coordinate(-99.97, 40.07),
+                new Coordinate(-99.97, 40.03)
+        });
+        MetroArea withHole = new MetroArea();
+        withHole.the_geom = gf.createMultiPolygon(new Polygon[] {
+                gf.createPolygon(shell, new LinearRing[] {hole})
+        });
+        withHole.save();
+        
+        // a disabled metro overlapping it, which should never be found
+        MetroArea disabled = new MetroArea();
+        disabled.the_geom = buildGeometry(40.05, -99.95, 10);
+        disabled.disabled = true;
+        disabled.save();
+        
+        JPA.em().flush();
+        
+        List<Coordinate> points = new ArrayList<Coordinate>();
+        // offset so that no point falls on an edge
+        for (int i = 0; i < 20; i++) {
+            for (int j = 0; j < 20; j++) {
+                points.add(new Coordinate(-118.0103 + i * 0.00131, 33.9897 + j * 0.00131));
+                points.add(new Coordinate(-100.0103 + i * 0.00631, 39.9897 + j * 0.00631));
+            }
+        }
+        
+        Long[] batch = MetroAreaIndex.find(points.toArray(new Coordinate[points.size()]));
+        int found = 0;
+        
+        for (int i = 0; i < points.size(); i++) {
+            Coordinate point = points.get(i);
+            Set<Long> expected = MetroArea.findIdsByGeomInDatabase(point.y, point.x);
+            Long actual = MetroAreaIndex.find(point.y, point.x);
+            
+            if (expected.isEmpty()) {
+                assertNull(actual);
+            }
+            else {
+                assertTrue(expected.contains(actual));
+                found++;
+            }
+            
+            assertEquals(actual, batch[i]);
+        }
+        
+        // make sure the test tested something
+        assertTrue(found > 0);
+        assertTrue(found < points.size());
+        
+        assertEquals(primaryMetro, MetroArea.findByGeom(34.005, -118.0));
+        assertEquals(withHole, MetroArea.findByGeom(40.01, -99.99));
+        assertNull(MetroArea.findByGeom(40.12, -99.88));
+    }
+    
+    @Test
+    public void testCascadedUnion () {
+        // overlapping squares, and one off by itself
+        List<Geometry> geoms = new ArrayList<Geometry>();
+        Geometry sequential = null;
+        for (int i = 0; i < 10; i++) {
+            Geometry geom = buildGeometry(30 + i * 0.005, -90 + i * 0.003);
+            geoms.add(geom);
+            sequential = sequential == null ? geom : sequential.union(geom);
+        }
+        geoms.add(buildGeometry(31, -91));
+        sequential = sequential.union(buildGeometry(31, -91));
+        
+        Geometry union = GeometryUtils.cascadedUnion(geoms);
+        assertEquals(4326, union.getSRID());
+        assertTrue(union.isValid());
+        assertEquals(sequential.getArea(), union.getArea(), 1e-12);
+        assertEquals(0, sequential.symDifference(union).getArea(), 1e-12);
+        
+        assertNull(GeometryUtils.cascadedUnion(new ArrayList<Geometry>()));
+    }
+    
+    @Test
+    public void testAgencyGeomIsStored () {
+        GtfsFeed feed1 = new GtfsFeed();
+        feed1.the_geom = buildGeometry(45, -122);
+        feed1.status = FeedParseStatus.SUCCESSFUL;
+        feed1.save();
+        
+        GtfsFeed feed2 = new GtfsFeed();
+        feed2.the_geom = buildGeometry(45.005, -122.005);
+        feed2.status = FeedParseStatus.SUCCESSFUL;
+        feed2.save();
+        
+        NtdAgency agency = new NtdAgency();
+        agency.feeds.add(feed1);
+        agency.save();
+        
+        // getting the geometry does not store it
+        assertEquals(feed1.the_geom.getArea(), agency.getGeom().getArea(), 1e-12);
+        assertNull(agency.feedsGeom);
+        
+        assertEquals(feed1.the_geom.getArea(), agency.updateFeedsGeom().getArea(), 1e-12);
+        assertNotNull(agency.feedsGeom);
+        String key = agency.feedsGeomKey;
+        
+        // not recomputed while the feeds stay the same
+        assertSame(agency.feedsGeom, agency.getGeom());
+        
+        // adding a feed changes it, but only once it is updated
+        agency.feeds.add(feed2);
+        Geometry geom = agency.getGeom();
+        assertEquals(key, agency.feedsGeomKey);
+        assertEquals(feed1.the_geom.union(feed2.the_geom).getArea(), geom.getArea(), 1e-12);
+        geom = agency.updateFeedsGeom();
+        assertFalse(key.equals(agency.feedsGeomKey));
+        assertEquals(feed1.the_geom.union(feed2.the_geom).getArea(), geom.getArea(), 1e-12);
+        key = agency.feedsGeomKey;
+        
+        // as does changing the geometry of a feed
+        feed2.the_geom = buildGeometry(45.005, -122.005, 2);
+        feed2.save();
+        geom = agency.updateFeedsGeom();
+        assertFalse(key.equals(agency.feedsGeomKey));
+        assertEquals(feed1.the_geom.union(feed2.the_geom).getArea(), geom.getArea(), 1e-12);
+    }
+    
+    @Test
+    public void testTileCacheInvalidation () {
+        // tiles are invalidated on commit, so this commits a feed of its own, and deletes it after
+        JPA.em().getTransaction().rollback();
+        JPA.em().getTransaction().begin();
+        
+        GtfsFeed feed = new GtfsFeed();
+        feed.the_geom = buildGeometry(34, -118);
+        feed.save();
+        commitBegin();
+        
+        try {
+            long version = TileCache.getVersion(TileCache.FEEDS);
+            
+            // saving a feed without changing anything in the tiles keeps them
+            feed.note = "stats recalculated";
+            feed.save();
+            commitBegin();
+            assertEquals(version, TileCache.getVersion(TileCache.FEEDS));
+            
+            // tiles are built from committed rows, so they are kept until the change is committed
+            feed.the_geom = buildGeometry(34, -118, 2);
+            feed.save();
+            JPA.em().flush();
+            assertEquals(version, TileCache.getVersion(TileCache.FEEDS));
+            commitBegin();
+            assertTrue(TileCache.getVersion(TileCache.FEEDS) > version);
+            version = TileCache.getVersion(TileCache.FEEDS);
+            
+            // or never, if it is rolled back
+            feed.disabled = true;
+            feed.save();
+            JPA.em().flush();
+            JPA.em().getTransaction().rollback();
+            JPA.em().getTransaction().begin();
+            assertEquals(version, TileCache.getVersion(TileCache.FEEDS));
+        } finally {
+            GtfsFeed.delete("id = ?", feed.id);
+            commitBegin();
+        }
+    }
+    
+    @Test
+    public void testFindMetrosNear () {
+        JPA.em().flush();
+        
+        // the feed is 0.005 degrees from the metro
+        List<Long> ids = SpatialQueries.findMetroIdsNear(feedWithAgency.the_geom, null);
+        assertEquals(1, ids.size());
+        assertEquals(primaryMetro.id, ids.get(0));
+        
+        assertEquals(0, SpatialQueries.findMetroIdsNear(feedWithAgency.the_geom,
+                "m.disabled = true").size());
+        assertEquals(0, SpatialQueries.findMetroIdsNear(feedWithAgencyNoMetro.the_geom, null).size());
+    }
+    
+    @Test
+    public void testGeometryUtilsUnderContention () throws Exception {
+        final int[] srids = new int[] {4326, 4269, 900913, 26910};
+        final int threads = 8;
+        final int iterations = 500;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Map<Integer, GeometryFactory>>> results =
+                new ArrayList<Future<Map<Integer, GeometryFactory>>>();
+        
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            results.add(executor.submit(new Callable<Map<Integer, GeometryFactory>> () {
+                public Map<Integer, GeometryFactory> call () throws Exception {
+                    Map<Integer, GeometryFactory> factories = new HashMap<Integer, GeometryFactory>();
+                    start.await();
+                    
+                    for (int i = 0; i < iterations; i++) {
+                        int srid = srids[(i + thread) % srids.length];
+                        double x = thread * 1000 + i;
+                        double y = -i;
+                        
+                        Geometry geom = GeometryUtils.parseEwkt("SRID=" + srid + ";POLYGON((" +
+                                x + " " + y + ", " + (x + 1) + " " + y + ", " +
+                                (x + 1) + " " + (y + 1) + ", " + x + " " + y + "))");
+                        assertEquals(srid, geom.getSRID());
+                        assertEquals(x, geom.getCoordinates()[0].x, 0);
+                        assertEquals(y, geom.getCoordinates()[0].y, 0);
+                        assertEquals(0.5, geom.getArea(), 1e-9);
+                        
+                        Geometry fromWkb = GeometryUtils.parseWkb(SpatialQueries.toWkb(geom), srid);
+                        assertEquals(srid, fromWkb.getSRID());
+                        assertTrue(geom.equalsExact(fromWkb));
+                        
+                        GeometryFactory gf = GeometryUtils.getGeometryFactoryForSrid(srid);
+                        assertEquals(srid, gf.getSRID());
+                        if (factories.containsKey(srid))
+                            assertSame(factories.get(srid), gf);
+                        factories.put(srid, gf);
+                    }
+                    
+                    return factories;
+                }
+            }));
+        }
+        
+        start.countDown();
+        
+        // every thread should see the same factory for each SRID
+        Map<Integer, GeometryFactory> first = results.get(0).get();
+        for (Future<Map<Integer, GeometryFactory>> result : results) {
+            Map<Integer, GeometryFactory> factories = result.get();
+            for (int srid : srids) {
+                assertSame(first.get(srid), factories.get(srid));
+            }
+        }
+        
+        executor.shutdown();
+    }
 }
@@ -286,4 +286,30 @@ public class ModelTest extends UnitTest {
         assertEquals(590000, agency.ridership);
         assertEquals(4000000, agency.passengerMiles);
     }
+
+    @Test
+    public void testDomainMatching () {
+        NtdAgency agency = getValidNtdAgency();
+        agency.url = "http://www.valid-gtfs.example.org/about";
+        agency.save();
+        assertEquals("valid-gtfs.example.org", agency.domain);
+        
+        // kept up to date when the URL changes
+        agency.url = "https://Valid-GTFS.example.org";
+        agency.save();
+        JPA.em().flush();
+        assertEquals("valid-gtfs.example.org", agency.domain);
+        
+        GtfsFeed feed = getValidGtfsFeed();
+        feed.save();
+        assertEquals("valid-gtfs.example.org", feed.agencyDomain);
+        
+        assertTrue(feed.findAgency());
+        assertTrue(agency.feeds.contains(feed));
+        
+        feed = getValidGtfsFeed();
+        feed.agencyUrl = "http://elsewhere.example.org";
+        feed.save();
+        assertFalse(feed.findAgency());
+    }
 }
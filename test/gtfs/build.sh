@@ -1,3 +1,5 @@
 zip -j calendarShrinking.zip calendarShrinking/* base/*
 zip -j datesOnly.zip datesOnly/* base/*
 zip -j holesAtStartAndEnd.zip holesAtStartAndEnd/* base/*
+zip -j reversedRange.zip reversedRange/* base/*
+zip -j badStopTimes.zip badStopTimes/* base/agency.txt base/routes.txt base/stops.txt base/trips.txt